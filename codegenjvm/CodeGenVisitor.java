@@ -3,24 +3,31 @@ package codegenjvm;
 import ast.*;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.*;
 
+import util.ClassLayout;
 import util.ClassTreeNode;
-import util.SymbolTable;
+import util.PostOrder;
+import util.Type;
+import util.TypeRegistry;
 import visitor.Visitor;
 
 public class CodeGenVisitor extends Visitor {
     PrintWriter j;
     ClassTreeNode ctn;
     String path, sig, classname;
-    SymbolTable mst, vst;
+    TypeRegistry types;
     LinkedHashMap<String, Integer> locals;
 
-    CodeGenVisitor(ClassTreeNode ctn, PrintWriter j) {
+    /** Nesting depth of expression visits, and deep expressions whose
+     * code is already generated (see gen()) */
+    int depth;
+    Set<Expr> done = Collections.newSetFromMap(new IdentityHashMap<Expr, Boolean>());
+
+    CodeGenVisitor(ClassTreeNode ctn, TypeRegistry types, PrintWriter j) {
 	System.out.println("new visitor");
 	this.ctn = ctn;
+	this.types = types;
 	this.j = j;
 	this.locals = new LinkedHashMap<String, Integer>();
 	path = sig = "";
@@ -93,9 +100,6 @@ public class CodeGenVisitor extends Visitor {
 	j.println();
 
 	System.out.println(j.checkError());
-	mst = ctn.getMethodSymbolTable();
-	vst = ctn.getVarSymbolTable();
-	vst.enterScope();
 	node.getMemberList().accept(this);
 
 	j.flush();
@@ -112,27 +116,13 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(Field node) {
 	System.out.println("field: " + node.getName());
 	String t = node.getType();
-	sig = classname + "/" + t + " ";
-	switch (t) {
-	case "int":
-	    sig += "I";
-	    break;
-	case "boolean":
-	    sig += "Z";
-	    break;
-	case "Object":
-	case "String":
-	    sig += "Ljava/lang/" + t + ";";
-	    break;
-	default:
-	    sig += "L" + t + ";";
-	}
+	sig = classname + "/" + t + " " + types.get(t).getDescriptor();
 	j.println(".field protected " + sig);
 
 	if (node.getInit() != null) {
 	    j.println("\taload_0");
 	    j.println("\tputstatic " + sig);
-	    node.getInit().accept(this);
+	    gen(node.getInit());
 
 	}
 	return null;
@@ -173,35 +163,13 @@ public class CodeGenVisitor extends Visitor {
 	    sig += ".method public " + node.getName() + "(";
 
 	}
-	vst.enterScope();
 	locals.put("this", locals.size());
 
 	System.out.println("formals: ");
 	node.getFormalList().accept(this);
 	System.out.println("/t-end formals: ");
 
-	sig += ")";
-	switch (t) {
-	case "void":
-	    sig += "V";
-	    break;
-	case "int":
-	    sig += "I";
-	    break;
-	case "boolean":
-	    sig += "Z";
-	    break;
-	case "Object":
-	case "String":
-	    sig += "Ljava/lang/" + t + ";";
-	    break;
-	case "TextIO":
-	case "Sys":
-	    sig += "Ljava/lib/" + t + ";";
-	    break;
-	default:
-	    sig += "L" + classname + "/" + t + ";";
-	}
+	sig += ")" + types.get(t).getDescriptor();
 	j.println(sig);
 	j.println(".throws java/lang/CloneNotSupportedException");
 	j.println("\t.limit stack 100");
@@ -242,27 +210,7 @@ public class CodeGenVisitor extends Visitor {
 
 	locals.put(node.getName(), locals.size());
 
-	String t = node.getType();
-
-	if (t.indexOf("[]") > -1) {
-	    sig += "[";
-	    t.replaceFirst("[]", "");
-	}
-
-	switch (t) {
-	case "int":
-	    sig += "I";
-	    break;
-	case "boolean":
-	    sig += "Z";
-	    break;
-	case "Object":
-	case "String":
-	    sig += "Ljava/lang/" + t + ";";
-	    break;
-	default:
-	    sig += "L" + t + ";";
-	}
+	sig += types.get(node.getType()).getDescriptor();
 	return null;
     }
 
@@ -274,9 +222,85 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(StmtList node) {
-	for (Iterator it = node.getIterator(); it.hasNext();)
-	    ((Stmt) it.next()).accept(this);
-	return null;
+	run(node);
+	return null;
+    }
+
+    /**
+     * Generate the code of statements with an explicit stack rather than
+     * recursion, so that deeply nested blocks and long else-if chains need
+     * no deep thread stack
+     * 
+     * @param first
+     *            a statement or a list of statements
+     * */
+    private void run(ASTNode first) {
+	ArrayDeque<ASTNode> work = new ArrayDeque<ASTNode>();
+	work.push(first);
+	while (!work.isEmpty()) {
+	    ASTNode next = work.pop();
+	    if (next instanceof StmtList) {
+		// push the statements so the first is on top
+		ArrayList<ASTNode> stmts = new ArrayList<ASTNode>();
+		for (Iterator<ASTNode> it = ((StmtList) next).getIterator(); it
+			.hasNext();)
+		    stmts.add(it.next());
+		for (int i = stmts.size() - 1; i >= 0; i--)
+		    work.push(stmts.get(i));
+	    } else if (next instanceof BlockStmt) {
+		work.push(((BlockStmt) next).getStmtList());
+	    } else if (next instanceof IfStmt) {
+		IfStmt node = (IfStmt) next;
+		gen(node.getPredExpr());
+		if (node.getElseStmt() != null)
+		    work.push(node.getElseStmt());
+		work.push(node.getThenStmt());
+	    } else if (next instanceof WhileStmt) {
+		WhileStmt node = (WhileStmt) next;
+		gen(node.getPredExpr());
+		work.push(node.getBodyStmt());
+	    } else if (next instanceof ForStmt) {
+		ForStmt node = (ForStmt) next;
+		if (node.getInitExpr() != null)
+		    gen(node.getInitExpr());
+		if (node.getPredExpr() != null)
+		    gen(node.getPredExpr());
+		if (node.getUpdateExpr() != null)
+		    gen(node.getUpdateExpr());
+		work.push(node.getBodyStmt());
+	    } else {
+		next.accept(this);
+	    }
+	}
+    }
+
+    /**
+     * Generate the code of an expression. Expressions nested deeper than
+     * PostOrder.MAX_RECURSION are generated without recursion: their nodes
+     * are visited children first, and the visit of a node then finds the
+     * code of its children already generated (each node's code is its
+     * children's code, in order, followed by its own).
+     * 
+     * @param expr
+     *            the expression
+     * */
+    private void gen(Expr expr) {
+	if (done.remove(expr))
+	    return;
+	if (depth < PostOrder.MAX_RECURSION) {
+	    depth++;
+	    expr.accept(this);
+	    depth--;
+	    return;
+	}
+	int saved = depth;
+	depth = 0;
+	for (Expr e : PostOrder.of(expr)) {
+	    e.accept(this);
+	    done.add(e);
+	}
+	depth = saved;
+	done.clear();
     }
 
     /**
@@ -289,31 +313,23 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(DeclStmt node) {
 	System.out.println("decl: " + node.getName());
 
-	String t = node.getType();
+	Type t = types.get(node.getType());
 	locals.put(node.getName(), locals.size());
 
-	node.getInit().accept(this);
+	gen(node.getInit());
 
 	int a = locals.get(node.getName());
 
 	if (a < 4) {
-	    switch (t) {
-	    case "int":
-	    case "boolean":
+	    if (t.isPrimitive())
 		j.println("\tistore_" + locals.get(node.getName()));
-		break;
-	    default:
+	    else
 		j.println("\tastore_" + locals.get(node.getName()));
-	    }
 	} else {
-	    switch (t) {
-	    case "int":
-	    case "boolean":
+	    if (t.isPrimitive())
 		j.println("\tistore " + locals.get(node.getName()));
-		break;
-	    default:
+	    else
 		j.println("\tastore " + locals.get(node.getName()));
-	    }
 	}
 	return null;
     }
@@ -326,7 +342,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(ExprStmt node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	return null;
     }
 
@@ -338,9 +354,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(IfStmt node) {
-	node.getPredExpr().accept(this);
-	node.getThenStmt().accept(this);
-	node.getElseStmt().accept(this);
+	run(node);
 	return null;
     }
 
@@ -352,8 +366,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(WhileStmt node) {
-	node.getPredExpr().accept(this);
-	node.getBodyStmt().accept(this);
+	run(node);
 	return null;
     }
 
@@ -365,13 +378,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(ForStmt node) {
-	if (node.getInitExpr() != null)
-	    node.getInitExpr().accept(this);
-	if (node.getPredExpr() != null)
-	    node.getPredExpr().accept(this);
-	if (node.getUpdateExpr() != null)
-	    node.getUpdateExpr().accept(this);
-	node.getBodyStmt().accept(this);
+	run(node);
 	return null;
     }
 
@@ -394,7 +401,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BlockStmt node) {
-	node.getStmtList().accept(this);
+	run(node);
 	return null;
     }
 
@@ -408,18 +415,14 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(ReturnStmt node) {
 	System.out.println("ret");
 	if (node.getExpr() != null) {
-	    node.getExpr().accept(this);
+	    gen(node.getExpr());
 
-	    String t = node.getExpr().getExprType();
+	    Type t = types.get(node.getExpr().getExprType());
 
-	    switch (t) {
-	    case "int":
-	    case "boolean":
+	    if (t.isPrimitive())
 		j.println("\tireturn");
-		break;
-	    default:
+	    else
 		j.println("\tareturn");
-	    }
 	} else {
 	    j.println("\treturn");
 	}
@@ -436,7 +439,7 @@ public class CodeGenVisitor extends Visitor {
      * */
     public Object visit(ExprList node) {
 	for (Iterator it = node.getIterator(); it.hasNext();)
-	    ((Expr) it.next()).accept(this);
+	    gen((Expr) it.next());
 	return null;
     }
 
@@ -450,8 +453,8 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(DispatchExpr node) {
 	System.out.println("disp: " + node.getMethodName());
 
-	node.getRefExpr().accept(this);
-	String t, ref = node.getRefExpr().getExprType();
+	gen(node.getRefExpr());
+	String ref = node.getRefExpr().getExprType();
 	System.out.println("ref: " + ref);
 	sig = "";
 	switch (ref) {
@@ -461,51 +464,18 @@ public class CodeGenVisitor extends Visitor {
 	    node.getRefExpr();
 	}
 
-	node.getActualList().accept(this);
-	for (Iterator it = node.getActualList().getIterator(); it.hasNext();) {
-	    t = (((Expr) it.next()).getExprType());
-	    System.out.println("actual: " + t);
-	    if (t.indexOf("[]") > -1) {
-		sig += "[";
-		t.replaceFirst("[]", "");
-	    }
+	for (Iterator it = node.getActualList().getIterator(); it.hasNext();)
+	    gen((Expr) it.next());
 
-	    switch (t) {
-	    case "int":
-		sig += "I";
-		break;
-	    case "boolean":
-		sig += "Z";
-		break;
-	    case "Object":
-	    case "String":
-		sig += "Ljava/lang/" + t + ";";
-		break;
-	    default:
-		sig += "L" + t + ";";
-	    }
-	}
-	sig += ")";
-	t = node.getExprType();
-	switch (t) {
-	case "void":
-	    sig += "V";
-	case "int":
-	    sig += "I";
-	    break;
-	case "boolean":
-	    sig += "Z";
-	    break;
-	case "Object":
-	case "String":
-	    sig += "Ljava/lang/" + t + ";";
-	    break;
-	default:
-	    sig += "L" + t + ";";
-	}
+	// the descriptor is that of the method as declared, which the actuals
+	// need not match exactly (they may be subclasses of the formals)
+	Type refType = types.get(ref);
+	ClassLayout layout = (refType.isArray() ? types.getObject() : refType)
+		.getLayout();
+	int slot = layout.getMethodSlot(node.getMethodName());
+	sig = layout.getMethodDescriptor(slot);
 
-	j.println("\tinvokevirtual " + ref + "/" + node.getMethodName() + "("
-		+ sig);
+	j.println("\tinvokevirtual " + ref + "/" + node.getMethodName() + sig);
 
 	return null;
     }
@@ -543,7 +513,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(NewArrayExpr node) {
-	node.getSize().accept(this);
+	gen(node.getSize());
 	return null;
     }
 
@@ -555,7 +525,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(InstanceofExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	return null;
     }
 
@@ -567,7 +537,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(CastExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	return null;
     }
 
@@ -581,29 +551,21 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(AssignExpr node) {
 	System.out.println("ass: " + node.getName());
 
-	node.getExpr().accept(this);
-	String t = node.getExprType();
+	gen(node.getExpr());
+	Type t = types.get(node.getExprType());
 
 	int a = locals.get(node.getName());
 
 	if (a < 4) {
-	    switch (t) {
-	    case "int":
-	    case "boolean":
+	    if (t.isPrimitive())
 		j.println("\tistore_" + locals.get(node.getName()));
-		break;
-	    default:
+	    else
 		j.println("\tastore_" + locals.get(node.getName()));
-	    }
 	} else {
-	    switch (t) {
-	    case "int":
-	    case "boolean":
+	    if (t.isPrimitive())
 		j.println("\tistore " + locals.get(node.getName()));
-		break;
-	    default:
+	    else
 		j.println("\tastore " + locals.get(node.getName()));
-	    }
 	}
 	return null;
     }
@@ -616,8 +578,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(ArrayAssignExpr node) {
-	node.getIndex().accept(this);
-	node.getExpr().accept(this);
+	gen(node.getIndex());
+	gen(node.getExpr());
 	return null;
     }
 
@@ -629,8 +591,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompEqExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -642,8 +604,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompNeExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -655,8 +617,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompLtExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -668,8 +630,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompLeqExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -681,8 +643,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompGtExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -694,8 +656,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryCompGeqExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 	return null;
     }
 
@@ -707,8 +669,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryArithPlusExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tiadd");
 	return null;
@@ -722,8 +684,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryArithMinusExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tisub");
 	return null;
@@ -737,8 +699,20 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryArithTimesExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	// multiplying by 2^k is shifting left by k (ConstantFolder puts a
+	// constant factor on the right), unless the factor was generated
+	// already (see gen())
+	Expr right = node.getRightExpr();
+	if (right instanceof ConstIntExpr && !done.contains(right)) {
+	    int c = ((ConstIntExpr) right).getIntConstant();
+	    if (c > 1 && (c & (c - 1)) == 0) {
+		iconst(Integer.numberOfTrailingZeros(c));
+		j.println("\tishl");
+		return null;
+	    }
+	}
+	gen(right);
 
 	j.println("\timul");
 	return null;
@@ -752,8 +726,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryArithDivideExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tidiv");
 	return null;
@@ -767,8 +741,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryArithModulusExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tirem");
 	return null;
@@ -782,8 +756,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryLogicAndExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tiand");
 	return null;
@@ -797,8 +771,8 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(BinaryLogicOrExpr node) {
-	node.getLeftExpr().accept(this);
-	node.getRightExpr().accept(this);
+	gen(node.getLeftExpr());
+	gen(node.getRightExpr());
 
 	j.println("\tior");
 	return null;
@@ -812,7 +786,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(UnaryNegExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 
 	j.println("\tineg");
 	return null;
@@ -826,7 +800,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(UnaryNotExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	j.println("\ticonst_m1");
 	j.println("\tixor");
 	return null;
@@ -840,7 +814,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(UnaryIncrExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	return null;
     }
 
@@ -852,7 +826,7 @@ public class CodeGenVisitor extends Visitor {
      * @return result of the visit
      * */
     public Object visit(UnaryDecrExpr node) {
-	node.getExpr().accept(this);
+	gen(node.getExpr());
 	return null;
     }
 
@@ -866,16 +840,12 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(VarExpr node) {
 	System.out.println("var: " + node.getName());
 	if (node.getRef() != null) {
-	    node.getRef().accept(this);
+	    gen(node.getRef());
 	}
-	switch (node.getExprType()) {
-	case "int":
-	case "boolean":
+	if (types.get(node.getExprType()).isPrimitive())
 	    j.println("\tiload_" + locals.get(node.getName()));
-	    break;
-	default:
+	else
 	    j.println("\taload_" + locals.get(node.getName()));
-	}
 	return null;
     }
 
@@ -889,8 +859,8 @@ public class CodeGenVisitor extends Visitor {
     public Object visit(ArrayExpr node) {
 	System.out.println("arr: " + node.getName());
 	if (node.getRef() != null)
-	    node.getRef().accept(this);
-	node.getIndex().accept(this);
+	    gen(node.getRef());
+	gen(node.getIndex());
 	return null;
     }
 
@@ -903,42 +873,30 @@ public class CodeGenVisitor extends Visitor {
      * */
     public Object visit(ConstIntExpr node) {
 	System.out.println("intc: " + node.getConstant());
-	int ic = node.getIntConstant();
-
-	switch (ic) {
-	case -1:
-	    j.println("iconst_m1");
-	    break;
-	case 0:
-	    j.println("iconst_0");
-	    break;
-	case 1:
-	    j.println("iconst_1");
-	    break;
-	case 2:
-	    j.println("iconst_2");
-	    break;
-	case 3:
-	    j.println("iconst_3");
-	    break;
-	case 4:
-	    j.println("iconst_4");
-	    break;
-	case 5:
-	    j.println("iconst_5");
-	    break;
-	default:
-	    if (ic <= 127 || ic >= -128)
-		j.println("\tbipush " + ic);
-	    else if (ic <= 32767 || ic >= -32768)
-		j.println("\tsipush " + ic);
-	    else
-		j.println("\tfupush " + ic);
-	    break;
-	}
+	iconst(node.getIntConstant());
 	return null;
     }
 
+    /**
+     * Push an int constant, with the shortest instruction for its value
+     * (constant folding can produce any int)
+     * 
+     * @param ic
+     *            the constant
+     * */
+    private void iconst(int ic) {
+	if (ic == -1)
+	    j.println("\ticonst_m1");
+	else if (ic >= 0 && ic <= 5)
+	    j.println("\ticonst_" + ic);
+	else if (ic >= -128 && ic <= 127)
+	    j.println("\tbipush " + ic);
+	else if (ic >= -32768 && ic <= 32767)
+	    j.println("\tsipush " + ic);
+	else
+	    j.println("\tldc " + ic);
+    }
+
     /**
      * Visit a boolean constant expression node
      * 
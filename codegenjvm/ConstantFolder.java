@@ -0,0 +1,449 @@
+package codegenjvm;
+
+import java.util.*;
+
+import ast.*;
+import util.PostOrder;
+import util.Type;
+
+/**
+ * Simplifies the expressions of a type checked class before its code is
+ * generated: operators whose operands are int or boolean constants are
+ * replaced by their result, and identities (x + 0, x - 0, x * 1, x / 1,
+ * 0 + x, 1 * x, - - x, ! ! b) by their operand. x * 0, x % 1 and a logical
+ * operator that a constant operand decides (x && false, x || true) become a
+ * constant only if x has no side effects; a constant left operand (false
+ * && x, true || x) decides the result by itself, as x is not evaluated.
+ * Division or modulus by a constant 0 is left to fail at run time, and a
+ * constant factor is moved to the right of a multiplication so that
+ * CodeGenVisitor can shift by a power of two.
+ *
+ * AST nodes cannot be changed, so a class, member, statement or expression
+ * with something simplified in it is rebuilt (keeping the expression types
+ * set by the type checker); the others are kept as they are. Nodes are
+ * visited in post-order (see PostOrder) rather than recursively.
+ * */
+public class ConstantFolder {
+    /** The result of each node simplified so far */
+    private IdentityHashMap<ASTNode, ASTNode> done = new IdentityHashMap<ASTNode, ASTNode>();
+
+    /**
+     * Simplify the expressions of a class
+     *
+     * @param node
+     *            the class, after type checking
+     * @return the class simplified (node itself if nothing was)
+     * */
+    public Class_ fold(Class_ node) {
+	MemberList members = new MemberList(node.getMemberList().getLineNum());
+	boolean changed = false;
+	for (Iterator<ASTNode> it = node.getMemberList().getIterator(); it
+		.hasNext();) {
+	    ASTNode member = it.next();
+	    ASTNode result = member instanceof Method ? method((Method) member)
+		    : field((Field) member);
+	    changed |= result != member;
+	    members.addElement(result);
+	    done.clear();
+	}
+	if (!changed)
+	    return node;
+	return new Class_(node.getLineNum(), node.getFilename(), node
+		.getName(), node.getParent(), members);
+    }
+
+    /**
+     * Simplify the initializer of a field
+     * */
+    private Field field(Field node) {
+	Expr init = fold(node.getInit());
+	if (init == node.getInit())
+	    return node;
+	return new Field(node.getLineNum(), node.getType(), node.getName(),
+		init);
+    }
+
+    /**
+     * Simplify the body of a method
+     * */
+    private Method method(Method node) {
+	for (ASTNode stmt : PostOrder.statements(node.getStmtList()))
+	    done.put(stmt, stmt(stmt));
+	StmtList body = (StmtList) done.get(node.getStmtList());
+	if (body == node.getStmtList())
+	    return node;
+	return new Method(node.getLineNum(), node.getReturnType(), node
+		.getName(), node.getFormalList(), body);
+    }
+
+    /**
+     * Simplify the expressions of a statement or a list of statements,
+     * whose inner statements are done
+     * */
+    private ASTNode stmt(ASTNode node) {
+	int ln = node.getLineNum();
+	if (node instanceof StmtList) {
+	    StmtList list = new StmtList(ln);
+	    boolean changed = false;
+	    for (Iterator<ASTNode> it = ((StmtList) node).getIterator(); it
+		    .hasNext();) {
+		ASTNode stmt = it.next();
+		changed |= done.get(stmt) != stmt;
+		list.addElement(done.get(stmt));
+	    }
+	    return changed ? list : node;
+	} else if (node instanceof DeclStmt) {
+	    DeclStmt d = (DeclStmt) node;
+	    Expr init = fold(d.getInit());
+	    return init == d.getInit() ? d : new DeclStmt(ln, d.getType(), d
+		    .getName(), init);
+	} else if (node instanceof ExprStmt) {
+	    Expr expr = fold(((ExprStmt) node).getExpr());
+	    return expr == ((ExprStmt) node).getExpr() ? node : new ExprStmt(
+		    ln, expr);
+	} else if (node instanceof ReturnStmt) {
+	    Expr expr = fold(((ReturnStmt) node).getExpr());
+	    return expr == ((ReturnStmt) node).getExpr() ? node
+		    : new ReturnStmt(ln, expr);
+	} else if (node instanceof BlockStmt) {
+	    StmtList list = ((BlockStmt) node).getStmtList();
+	    return done.get(list) == list ? node : new BlockStmt(ln,
+		    (StmtList) done.get(list));
+	} else if (node instanceof IfStmt) {
+	    IfStmt s = (IfStmt) node;
+	    Expr pred = fold(s.getPredExpr());
+	    Stmt thenStmt = (Stmt) done.get(s.getThenStmt());
+	    Stmt elseStmt = s.getElseStmt() == null ? null : (Stmt) done
+		    .get(s.getElseStmt());
+	    if (pred == s.getPredExpr() && thenStmt == s.getThenStmt()
+		    && elseStmt == s.getElseStmt())
+		return node;
+	    return new IfStmt(ln, pred, thenStmt, elseStmt);
+	} else if (node instanceof WhileStmt) {
+	    WhileStmt s = (WhileStmt) node;
+	    Expr pred = fold(s.getPredExpr());
+	    Stmt body = (Stmt) done.get(s.getBodyStmt());
+	    if (pred == s.getPredExpr() && body == s.getBodyStmt())
+		return node;
+	    return new WhileStmt(ln, pred, body);
+	} else if (node instanceof ForStmt) {
+	    ForStmt s = (ForStmt) node;
+	    Expr init = fold(s.getInitExpr());
+	    Expr pred = fold(s.getPredExpr());
+	    Expr update = fold(s.getUpdateExpr());
+	    Stmt body = (Stmt) done.get(s.getBodyStmt());
+	    if (init == s.getInitExpr() && pred == s.getPredExpr()
+		    && update == s.getUpdateExpr() && body == s.getBodyStmt())
+		return node;
+	    return new ForStmt(ln, init, pred, update, body);
+	}
+	return node; // break
+    }
+
+    /**
+     * Simplify an expression
+     *
+     * @param expr
+     *            the expression, or null
+     * @return the expression simplified (expr itself if nothing was)
+     * */
+    private Expr fold(Expr expr) {
+	if (expr == null)
+	    return null;
+	for (Expr e : PostOrder.of(expr))
+	    done.put(e, expr(e));
+	return (Expr) done.get(expr);
+    }
+
+    /**
+     * Get the simplified child of an expression
+     * */
+    private Expr get(Expr child) {
+	return child == null ? null : (Expr) done.get(child);
+    }
+
+    /**
+     * Simplify an expression whose children are done
+     * */
+    private Expr expr(Expr node) {
+	int ln = node.getLineNum();
+	Expr result = node;
+	if (node instanceof BinaryExpr) {
+	    BinaryExpr b = (BinaryExpr) node;
+	    Expr left = get(b.getLeftExpr()), right = get(b.getRightExpr());
+	    result = binary(b, left, right);
+	    if (result == null)
+		result = left == b.getLeftExpr() && right == b.getRightExpr() ? node
+			: copy(b, left, right);
+	    return result;
+	} else if (node instanceof UnaryNegExpr) {
+	    Expr e = get(((UnaryNegExpr) node).getExpr());
+	    if (e instanceof ConstIntExpr)
+		return intConst(node, -((ConstIntExpr) e).getIntConstant());
+	    if (e instanceof UnaryNegExpr)
+		return ((UnaryNegExpr) e).getExpr();
+	    if (e != ((UnaryNegExpr) node).getExpr())
+		result = new UnaryNegExpr(ln, e);
+	} else if (node instanceof UnaryNotExpr) {
+	    Expr e = get(((UnaryNotExpr) node).getExpr());
+	    if (e instanceof ConstBooleanExpr)
+		return booleanConst(node, !booleanValue(e));
+	    if (e instanceof UnaryNotExpr)
+		return ((UnaryNotExpr) e).getExpr();
+	    if (e != ((UnaryNotExpr) node).getExpr())
+		result = new UnaryNotExpr(ln, e);
+	} else if (node instanceof UnaryIncrExpr) {
+	    UnaryIncrExpr u = (UnaryIncrExpr) node;
+	    if (get(u.getExpr()) != u.getExpr())
+		result = new UnaryIncrExpr(ln, get(u.getExpr()), u.isPostfix());
+	} else if (node instanceof UnaryDecrExpr) {
+	    UnaryDecrExpr u = (UnaryDecrExpr) node;
+	    if (get(u.getExpr()) != u.getExpr())
+		result = new UnaryDecrExpr(ln, get(u.getExpr()), u.isPostfix());
+	} else if (node instanceof DispatchExpr) {
+	    DispatchExpr d = (DispatchExpr) node;
+	    ExprList actuals = new ExprList(d.getActualList().getLineNum());
+	    boolean changed = get(d.getRefExpr()) != d.getRefExpr();
+	    for (Iterator<ASTNode> it = d.getActualList().getIterator(); it
+		    .hasNext();) {
+		Expr actual = (Expr) it.next();
+		changed |= get(actual) != actual;
+		actuals.addElement(get(actual));
+	    }
+	    if (changed)
+		result = new DispatchExpr(ln, get(d.getRefExpr()), d
+			.getMethodName(), actuals);
+	} else if (node instanceof VarExpr) {
+	    VarExpr v = (VarExpr) node;
+	    if (get(v.getRef()) != v.getRef())
+		result = new VarExpr(ln, get(v.getRef()), v.getName());
+	} else if (node instanceof ArrayExpr) {
+	    ArrayExpr a = (ArrayExpr) node;
+	    if (get(a.getRef()) != a.getRef()
+		    || get(a.getIndex()) != a.getIndex())
+		result = new ArrayExpr(ln, get(a.getRef()), a.getName(),
+			get(a.getIndex()));
+	} else if (node instanceof AssignExpr) {
+	    AssignExpr a = (AssignExpr) node;
+	    if (get(a.getExpr()) != a.getExpr())
+		result = new AssignExpr(ln, a.getRefName(), a.getName(),
+			get(a.getExpr()));
+	} else if (node instanceof ArrayAssignExpr) {
+	    ArrayAssignExpr a = (ArrayAssignExpr) node;
+	    if (get(a.getIndex()) != a.getIndex()
+		    || get(a.getExpr()) != a.getExpr())
+		result = new ArrayAssignExpr(ln, a.getRefName(), a.getName(),
+			get(a.getIndex()), get(a.getExpr()));
+	} else if (node instanceof NewArrayExpr) {
+	    NewArrayExpr n = (NewArrayExpr) node;
+	    if (get(n.getSize()) != n.getSize())
+		result = new NewArrayExpr(ln, n.getType(), get(n.getSize()));
+	} else if (node instanceof InstanceofExpr) {
+	    InstanceofExpr i = (InstanceofExpr) node;
+	    if (get(i.getExpr()) != i.getExpr())
+		result = new InstanceofExpr(ln, get(i.getExpr()), i.getType());
+	} else if (node instanceof CastExpr) {
+	    CastExpr c = (CastExpr) node;
+	    if (get(c.getExpr()) != c.getExpr()) {
+		CastExpr cast = new CastExpr(ln, c.getType(), get(c.getExpr()));
+		cast.setUpCast(c.getUpCast());
+		result = cast;
+	    }
+	}
+	result.setExprType(node.getExprType());
+	return result;
+    }
+
+    /**
+     * Simplify a binary expression
+     *
+     * @param node
+     *            the expression
+     * @param left
+     *            its left operand, simplified
+     * @param right
+     *            its right operand, simplified
+     * @return the simplified expression, or null if there is no
+     *         simplification
+     * */
+    private Expr binary(BinaryExpr node, Expr left, Expr right) {
+	Integer a = left instanceof ConstIntExpr ? ((ConstIntExpr) left)
+		.getIntConstant() : null;
+	Integer b = right instanceof ConstIntExpr ? ((ConstIntExpr) right)
+		.getIntConstant() : null;
+	Boolean p = left instanceof ConstBooleanExpr ? booleanValue(left)
+		: null;
+	Boolean q = right instanceof ConstBooleanExpr ? booleanValue(right)
+		: null;
+
+	if (node instanceof BinaryArithPlusExpr) {
+	    if (a != null && b != null)
+		return intConst(node, a + b);
+	    if (b != null && b == 0)
+		return left;
+	    if (a != null && a == 0)
+		return right;
+	} else if (node instanceof BinaryArithMinusExpr) {
+	    if (a != null && b != null)
+		return intConst(node, a - b);
+	    if (b != null && b == 0)
+		return left;
+	} else if (node instanceof BinaryArithTimesExpr) {
+	    if (a != null && b != null)
+		return intConst(node, a * b);
+	    if (b != null && b == 1)
+		return left;
+	    if (a != null && a == 1)
+		return right;
+	    if (b != null && b == 0 && pure(left, 0))
+		return right;
+	    if (a != null && a == 0 && pure(right, 0))
+		return left;
+	    if (a != null) // the constant goes on the right
+		return copy(node, right, left);
+	} else if (node instanceof BinaryArithDivideExpr) {
+	    if (a != null && b != null && b != 0)
+		return intConst(node, a / b);
+	    if (b != null && b == 1)
+		return left;
+	} else if (node instanceof BinaryArithModulusExpr) {
+	    if (a != null && b != null && b != 0)
+		return intConst(node, a % b);
+	    if (b != null && (b == 1 || b == -1) && pure(left, 0))
+		return intConst(node, 0);
+	} else if (node instanceof BinaryCompLtExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a < b);
+	} else if (node instanceof BinaryCompLeqExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a <= b);
+	} else if (node instanceof BinaryCompGtExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a > b);
+	} else if (node instanceof BinaryCompGeqExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a >= b);
+	} else if (node instanceof BinaryCompEqExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a.intValue() == b.intValue());
+	    if (p != null && q != null)
+		return booleanConst(node, p.booleanValue() == q
+			.booleanValue());
+	} else if (node instanceof BinaryCompNeExpr) {
+	    if (a != null && b != null)
+		return booleanConst(node, a.intValue() != b.intValue());
+	    if (p != null && q != null)
+		return booleanConst(node, p.booleanValue() != q
+			.booleanValue());
+	} else if (node instanceof BinaryLogicAndExpr) {
+	    if (p != null)
+		return p ? right : left;
+	    if (q != null && q)
+		return left;
+	    if (q != null && pure(left, 0))
+		return right;
+	} else if (node instanceof BinaryLogicOrExpr) {
+	    if (p != null)
+		return p ? left : right;
+	    if (q != null && !q)
+		return left;
+	    if (q != null && pure(left, 0))
+		return right;
+	}
+	return null;
+    }
+
+    /**
+     * Build a binary expression of the same kind as another
+     * */
+    private static BinaryExpr copy(BinaryExpr node, Expr left, Expr right) {
+	int ln = node.getLineNum();
+	BinaryExpr result;
+	if (node instanceof BinaryArithPlusExpr)
+	    result = new BinaryArithPlusExpr(ln, left, right);
+	else if (node instanceof BinaryArithMinusExpr)
+	    result = new BinaryArithMinusExpr(ln, left, right);
+	else if (node instanceof BinaryArithTimesExpr)
+	    result = new BinaryArithTimesExpr(ln, left, right);
+	else if (node instanceof BinaryArithDivideExpr)
+	    result = new BinaryArithDivideExpr(ln, left, right);
+	else if (node instanceof BinaryArithModulusExpr)
+	    result = new BinaryArithModulusExpr(ln, left, right);
+	else if (node instanceof BinaryCompEqExpr)
+	    result = new BinaryCompEqExpr(ln, left, right);
+	else if (node instanceof BinaryCompNeExpr)
+	    result = new BinaryCompNeExpr(ln, left, right);
+	else if (node instanceof BinaryCompLtExpr)
+	    result = new BinaryCompLtExpr(ln, left, right);
+	else if (node instanceof BinaryCompLeqExpr)
+	    result = new BinaryCompLeqExpr(ln, left, right);
+	else if (node instanceof BinaryCompGtExpr)
+	    result = new BinaryCompGtExpr(ln, left, right);
+	else if (node instanceof BinaryCompGeqExpr)
+	    result = new BinaryCompGeqExpr(ln, left, right);
+	else if (node instanceof BinaryLogicAndExpr)
+	    result = new BinaryLogicAndExpr(ln, left, right);
+	else
+	    result = new BinaryLogicOrExpr(ln, left, right);
+	result.setExprType(node.getExprType());
+	return result;
+    }
+
+    /**
+     * Whether evaluating an expression can have no effect other than its
+     * value: no assignment, call, allocation or exception. Expressions
+     * nested deeper than PostOrder.MAX_RECURSION are taken to have effects.
+     * */
+    static boolean pure(Expr expr, int depth) {
+	if (depth > PostOrder.MAX_RECURSION)
+	    return false;
+	if (expr instanceof ConstExpr)
+	    return true;
+	if (expr instanceof VarExpr)
+	    return ((VarExpr) expr).getRef() == null
+		    || pure(((VarExpr) expr).getRef(), depth + 1);
+	if (expr instanceof BinaryArithDivideExpr
+		|| expr instanceof BinaryArithModulusExpr) {
+	    // only division by a constant other than 0 cannot fail
+	    Expr divisor = ((BinaryExpr) expr).getRightExpr();
+	    return divisor instanceof ConstIntExpr
+		    && ((ConstIntExpr) divisor).getIntConstant() != 0
+		    && pure(((BinaryExpr) expr).getLeftExpr(), depth + 1);
+	}
+	if (expr instanceof BinaryExpr)
+	    return pure(((BinaryExpr) expr).getLeftExpr(), depth + 1)
+		    && pure(((BinaryExpr) expr).getRightExpr(), depth + 1);
+	if (expr instanceof UnaryNegExpr || expr instanceof UnaryNotExpr)
+	    return pure(((UnaryExpr) expr).getExpr(), depth + 1);
+	if (expr instanceof InstanceofExpr)
+	    return pure(((InstanceofExpr) expr).getExpr(), depth + 1);
+	return false;
+    }
+
+    /**
+     * Get the value of a boolean constant
+     * */
+    static boolean booleanValue(Expr expr) {
+	return "true".equals(((ConstBooleanExpr) expr).getConstant());
+    }
+
+    /**
+     * Build an int constant in place of an expression
+     * */
+    private static Expr intConst(Expr node, int value) {
+	Expr result = new ConstIntExpr(node.getLineNum(), Integer
+		.toString(value));
+	result.setExprType(Type.INT.getName());
+	return result;
+    }
+
+    /**
+     * Build a boolean constant in place of an expression
+     * */
+    private static Expr booleanConst(Expr node, boolean value) {
+	Expr result = new ConstBooleanExpr(node.getLineNum(), Boolean
+		.toString(value));
+	result.setExprType(Type.BOOLEAN.getName());
+	return result;
+    }
+}
@@ -0,0 +1,168 @@
+package codegenjvm;
+
+import java.util.*;
+
+import ast.*;
+import util.PostOrder;
+
+/**
+ * Removes from the methods of a class the statements that can never run
+ * or that do nothing, before its code is generated (and after
+ * ConstantFolder, which leaves constant predicates as constants):
+ * statements that follow one that always returns or breaks (a return, a
+ * break, a block ending in one, or an if both of whose branches do), the
+ * branch of an if that its constant predicate rules out, loops whose
+ * predicate is the constant false, and expression statements (and for
+ * loop initializers and updates) without side effects. A loop body or if
+ * branch that is removed becomes an empty block.
+ *
+ * Like ConstantFolder, this rebuilds the statements with something
+ * removed and keeps the others, visiting them in post-order.
+ * */
+public class DeadCodeEliminator {
+    /** The result of each statement done so far (null if removed) */
+    private IdentityHashMap<ASTNode, ASTNode> done = new IdentityHashMap<ASTNode, ASTNode>();
+
+    /** Results that always return or break */
+    private Set<ASTNode> abrupt = Collections
+	    .newSetFromMap(new IdentityHashMap<ASTNode, Boolean>());
+
+    /**
+     * Remove the dead code of a class
+     *
+     * @param node
+     *            the class, after type checking
+     * @return the class without dead code (node itself if it had none)
+     * */
+    public Class_ eliminate(Class_ node) {
+	MemberList members = new MemberList(node.getMemberList().getLineNum());
+	boolean changed = false;
+	for (Iterator<ASTNode> it = node.getMemberList().getIterator(); it
+		.hasNext();) {
+	    ASTNode member = it.next();
+	    ASTNode result = member instanceof Method ? method((Method) member)
+		    : member;
+	    changed |= result != member;
+	    members.addElement(result);
+	    done.clear();
+	    abrupt.clear();
+	}
+	if (!changed)
+	    return node;
+	return new Class_(node.getLineNum(), node.getFilename(), node
+		.getName(), node.getParent(), members);
+    }
+
+    /**
+     * Remove the dead code of a method
+     * */
+    private Method method(Method node) {
+	for (ASTNode stmt : PostOrder.statements(node.getStmtList()))
+	    done.put(stmt, stmt(stmt));
+	StmtList body = (StmtList) done.get(node.getStmtList());
+	if (body == node.getStmtList())
+	    return node;
+	return new Method(node.getLineNum(), node.getReturnType(), node
+		.getName(), node.getFormalList(), body);
+    }
+
+    /**
+     * Remove the dead code of a statement or a list of statements, whose
+     * inner statements are done
+     *
+     * @return the statement without dead code, or null if none is left
+     * */
+    private ASTNode stmt(ASTNode node) {
+	int ln = node.getLineNum();
+	if (node instanceof StmtList) {
+	    StmtList list = new StmtList(ln);
+	    boolean changed = false, ends = false;
+	    for (Iterator<ASTNode> it = ((StmtList) node).getIterator(); it
+		    .hasNext();) {
+		ASTNode stmt = it.next();
+		ASTNode result = done.get(stmt);
+		if (ends || result != stmt) {
+		    changed = true;
+		    if (ends || result == null)
+			continue; // unreachable, or removed
+		}
+		list.addElement(result);
+		ends = abrupt.contains(result);
+	    }
+	    if (changed)
+		node = list;
+	    if (ends)
+		abrupt.add(node);
+	    return node;
+	} else if (node instanceof ReturnStmt || node instanceof BreakStmt) {
+	    abrupt.add(node);
+	    return node;
+	} else if (node instanceof ExprStmt) {
+	    return ConstantFolder.pure(((ExprStmt) node).getExpr(), 0) ? null
+		    : node;
+	} else if (node instanceof BlockStmt) {
+	    StmtList list = ((BlockStmt) node).getStmtList();
+	    if (done.get(list) != list)
+		node = new BlockStmt(ln, (StmtList) done.get(list));
+	    if (abrupt.contains(done.get(list)))
+		abrupt.add(node);
+	    return node;
+	} else if (node instanceof IfStmt) {
+	    IfStmt s = (IfStmt) node;
+	    Stmt thenStmt = (Stmt) done.get(s.getThenStmt());
+	    Stmt elseStmt = s.getElseStmt() == null ? null : (Stmt) done
+		    .get(s.getElseStmt());
+	    if (s.getPredExpr() instanceof ConstBooleanExpr)
+		return ConstantFolder.booleanValue(s.getPredExpr()) ? thenStmt
+			: elseStmt;
+	    if (thenStmt == null && elseStmt == null
+		    && ConstantFolder.pure(s.getPredExpr(), 0))
+		return null;
+	    if (thenStmt != s.getThenStmt() || elseStmt != s.getElseStmt())
+		node = new IfStmt(ln, s.getPredExpr(), orEmpty(thenStmt, ln),
+			elseStmt);
+	    if (abrupt.contains(thenStmt) && abrupt.contains(elseStmt))
+		abrupt.add(node);
+	    return node;
+	} else if (node instanceof WhileStmt) {
+	    WhileStmt s = (WhileStmt) node;
+	    if (s.getPredExpr() instanceof ConstBooleanExpr
+		    && !ConstantFolder.booleanValue(s.getPredExpr()))
+		return null;
+	    Stmt body = (Stmt) done.get(s.getBodyStmt());
+	    return body == s.getBodyStmt() ? node : new WhileStmt(ln, s
+		    .getPredExpr(), orEmpty(body, ln));
+	} else if (node instanceof ForStmt) {
+	    ForStmt s = (ForStmt) node;
+	    Expr init = effect(s.getInitExpr());
+	    if (s.getPredExpr() instanceof ConstBooleanExpr
+		    && !ConstantFolder.booleanValue(s.getPredExpr()))
+		return init == null ? null : new ExprStmt(ln, init);
+	    Expr update = effect(s.getUpdateExpr());
+	    Stmt body = (Stmt) done.get(s.getBodyStmt());
+	    if (init == s.getInitExpr() && update == s.getUpdateExpr()
+		    && body == s.getBodyStmt())
+		return node;
+	    return new ForStmt(ln, init, s.getPredExpr(), update, orEmpty(
+		    body, ln));
+	}
+	return node; // declaration
+    }
+
+    /**
+     * Get an expression evaluated for its effects only
+     *
+     * @return the expression, or null if it has none
+     * */
+    private static Expr effect(Expr expr) {
+	return expr == null || ConstantFolder.pure(expr, 0) ? null : expr;
+    }
+
+    /**
+     * Get a statement that is required, replacing one removed by an empty
+     * block
+     * */
+    private static Stmt orEmpty(Stmt stmt, int ln) {
+	return stmt != null ? stmt : new BlockStmt(ln, new StmtList(ln));
+    }
+}
@@ -8,10 +8,23 @@ import ast.*;
 
 public class JVMCodeGenerator {
     private ClassTreeNode root;
+    private TypeRegistry types;
     private boolean debug;
 
-    public JVMCodeGenerator(ClassTreeNode root, boolean debug) throws FileNotFoundException {	
+    /**
+     * JVMCodeGenerator constructor
+     *
+     * @param root
+     *            root of the class hierarchy tree, after type checking
+     * @param types
+     *            types of the program, with the class layouts built by the
+     *            analysis (see SemanticAnalyzer.getTypes())
+     * @param debug
+     *            is debugging enabled?
+     * */
+    public JVMCodeGenerator(ClassTreeNode root, TypeRegistry types, boolean debug) throws FileNotFoundException {	
 	this.root = root;
+	this.types = types;
 	this.debug = debug;
     }
 
@@ -19,14 +32,43 @@ public class JVMCodeGenerator {
 	generate_r(root);
     }
 
+    /**
+     * Generate the Jasmin code of a single user-defined class, after
+     * simplifying it (see optimize())
+     *
+     * @param ctn
+     *            the class, after type checking
+     * @param types
+     *            types of the program
+     * @param pw
+     *            where to write the code
+     * */
+    public static void generate(ClassTreeNode ctn, TypeRegistry types,
+	    PrintWriter pw) {
+	new CodeGenVisitor(ctn, types, pw).visit(optimize(ctn.getASTNode()));
+    }
+
+    /**
+     * Simplify a class before generating its code: fold its constant
+     * expressions, then remove the code that cannot run or does nothing
+     * (see ConstantFolder and DeadCodeEliminator)
+     *
+     * @param node
+     *            the class, after type checking
+     * @return the class simplified
+     * */
+    static Class_ optimize(Class_ node) {
+	return new DeadCodeEliminator().eliminate(new ConstantFolder()
+		.fold(node));
+    }
+
     public void generate_r(ClassTreeNode ctn) throws FileNotFoundException {
 	if (!ctn.isBuiltIn()) {
 	    System.out.println(ctn.getName()+" != built-in");
 	    
 	    PrintWriter pw = new PrintWriter(new File(ctn.getName() + ".j"));
 	    
-	    CodeGenVisitor visitor = new CodeGenVisitor(ctn, pw);
-	    visitor.visit(ctn.getASTNode());
+	    generate(ctn, types, pw);
 	}
 	
 	Iterator<ClassTreeNode> it = ctn.getChildrenList();
@@ -0,0 +1,200 @@
+package driver;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ast.*;
+import codegenjvm.JVMCodeGenerator;
+import parser.Parser;
+import semant.SemanticAnalyzer;
+import util.ClassTreeNode;
+
+/**
+ * A compiler driver that overlaps its stages instead of running them one
+ * after another. Stages are connected by bounded queues:
+ *
+ * <pre>
+ *   parse (one task per file)
+ *     -> classes of each file, in command-line order
+ *   hierarchy, class environments, type checking
+ *     -> each class as soon as it is type checked
+ *   code generation
+ * </pre>
+ *
+ * Each parsed file's classes are added to the class hierarchy while later
+ * files are still being parsed. Parents can only be linked, and member
+ * environments built, once every class is known (a member's type may be a
+ * class from a later file), so these run when parsing ends, in breadth-first
+ * order. Type checking starts once all environments are built, since a
+ * method body can reach members of any class through return types. Code is
+ * generated for each class while the next ones are type checked. Generated
+ * code is kept in memory and written out only if there were no errors, so
+ * a failed compile leaves no partial output.
+ *
+ * Usage: java driver.PipelinedCompiler file...
+ * */
+public class PipelinedCompiler {
+    /** Capacity of the queues between stages */
+    private static final int QUEUE_SIZE = 64;
+
+    /** Source files */
+    private String[] filenames;
+
+    /** Is debugging enabled? */
+    private boolean debug;
+
+    /**
+     * PipelinedCompiler constructor
+     *
+     * @param filenames
+     *            source files
+     * @param debug
+     *            is debugging enabled?
+     * */
+    public PipelinedCompiler(String[] filenames, boolean debug) {
+	this.filenames = filenames;
+	this.debug = debug;
+    }
+
+    /**
+     * Compile the program, writing one Jasmin file per class. Exits (as
+     * the stages do when run separately) if there are errors.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for a stage
+     * @throws ExecutionException
+     *             if a stage fails
+     * @throws IOException
+     *             if a Jasmin file cannot be written
+     * */
+    public void compile() throws InterruptedException, ExecutionException,
+	    IOException {
+	final Parser parser = new Parser(filenames, debug);
+	final SemanticAnalyzer analyzer = new SemanticAnalyzer(debug);
+	final BlockingQueue<ClassList> parsed = new ArrayBlockingQueue<ClassList>(
+		QUEUE_SIZE);
+	final BlockingQueue<ClassTreeNode> checked = new ArrayBlockingQueue<ClassTreeNode>(
+		QUEUE_SIZE);
+	final ForkJoinPool pool = new ForkJoinPool();
+	ExecutorService stages = Executors.newFixedThreadPool(3);
+	CompletionService<Object> done = new ExecutorCompletionService<Object>(
+		stages);
+
+	try {
+	    done.submit(new Callable<Object>() {
+		public Object call() throws InterruptedException {
+		    parser.parse(pool, parsed);
+		    return null;
+		}
+	    });
+	    done.submit(new Callable<Object>() {
+		public Object call() throws InterruptedException {
+		    return analyze(analyzer, pool, parsed, checked);
+		}
+	    });
+	    Future<Object> generate = done.submit(new Callable<Object>() {
+		public Object call() throws InterruptedException {
+		    return generate(analyzer, checked);
+		}
+	    });
+
+	    // wait for the stages in the order they finish, so that a failed
+	    // stage is seen (and the others interrupted) at once rather than
+	    // leaving the rest blocked on a queue
+	    for (int i = 0; i < 3; i++)
+		done.take().get();
+	    @SuppressWarnings("unchecked")
+	    Map<String, Object> code = (Map<String, Object>) generate.get();
+
+	    // every stage is done: report semantic errors, then write the code
+	    analyzer.checkErrors();
+	    for (Map.Entry<String, Object> e : code.entrySet()) {
+		if (e.getValue() instanceof RuntimeException)
+		    throw (RuntimeException) e.getValue();
+		Writer out = new FileWriter(e.getKey() + ".j");
+		try {
+		    out.write((String) e.getValue());
+		} finally {
+		    out.close();
+		}
+	    }
+	} finally {
+	    stages.shutdownNow();
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * Semantic analysis stage
+     *
+     * @param analyzer
+     *            the analyzer
+     * @param pool
+     *            pool to build the class environments on
+     * @param parsed
+     *            classes of each parsed file, ending with an empty list
+     * @param checked
+     *            receives each class once it is type checked, followed by
+     *            the root of the class hierarchy
+     * @return root of the class hierarchy tree
+     * */
+    private static ClassTreeNode analyze(SemanticAnalyzer analyzer,
+	    ForkJoinPool pool, BlockingQueue<ClassList> parsed,
+	    BlockingQueue<ClassTreeNode> checked) throws InterruptedException {
+	for (ClassList list = parsed.take(); list.getSize() > 0; list = parsed
+		.take()) {
+	    for (Iterator<ASTNode> it = list.getIterator(); it.hasNext();)
+		analyzer.addClass((Class_) it.next());
+	}
+
+	// parents before children
+	Vector<ClassTreeNode> classes = analyzer.linkClasses();
+	analyzer.buildClassEnvs(classes, pool);
+	analyzer.checkMain();
+
+	for (ClassTreeNode ctn : classes) {
+	    analyzer.typeCheck(ctn);
+	    if (!ctn.isBuiltIn())
+		checked.put(ctn);
+	}
+	// the root is built in, so it marks the end
+	checked.put(classes.get(0));
+	return classes.get(0);
+    }
+
+    /**
+     * Code generation stage
+     *
+     * @param analyzer
+     *            the analyzer, for the types of the program
+     * @param checked
+     *            type checked classes, followed by the root of the class
+     *            hierarchy
+     * @return Jasmin code of each class by class name, or the exception
+     *         thrown while generating it
+     * */
+    private static Map<String, Object> generate(SemanticAnalyzer analyzer,
+	    BlockingQueue<ClassTreeNode> checked) throws InterruptedException {
+	Map<String, Object> code = new LinkedHashMap<String, Object>();
+	for (ClassTreeNode ctn = checked.take(); !ctn.isBuiltIn(); ctn = checked
+		.take()) {
+	    StringWriter out = new StringWriter();
+	    try {
+		// the types are known once any class has been type checked
+		JVMCodeGenerator.generate(ctn, analyzer.getTypes(),
+			new PrintWriter(out));
+		code.put(ctn.getName(), out.toString());
+	    } catch (RuntimeException e) {
+		// the class may have had semantic errors, which are only
+		// reported (ending the compile) once every stage is done
+		code.put(ctn.getName(), e);
+	    }
+	}
+	return code;
+    }
+
+    public static void main(String[] args) throws Exception {
+	new PipelinedCompiler(args, false).compile();
+    }
+}
@@ -0,0 +1,291 @@
+package parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import ast.*;
+import util.NamePool;
+
+/**
+ * Lets the existing visitors run over an ArenaAst by building ordinary AST
+ * nodes for part of it (typically one class) on demand. Expression types
+ * and up-cast flags stored in the arena are copied onto the nodes built,
+ * and saveTypes() copies those set by a visitor back into the arena. The
+ * adapter itself only keeps the expressions built since the last
+ * saveTypes().
+ *
+ * This does not make semantic analysis run in less heap: the
+ * ClassTreeNodes built over the classes, and their ClassLayouts (which
+ * keep every Method with its body), hold on to the nodes built for the
+ * rest of the compile. The arena saves heap only while the program is
+ * held between phases or compiles without those structures.
+ * */
+public class ArenaAdapter {
+    /** The arena */
+    private ArenaAst arena;
+
+    /** Expression nodes built since the last saveTypes(), and the arena
+     * ids they were built from */
+    private ArrayList<Expr> exprs = new ArrayList<Expr>();
+    private ArrayList<Integer> ids = new ArrayList<Integer>();
+
+    /** Nodes of the tree being built, by arena id */
+    private HashMap<Integer, ASTNode> built = new HashMap<Integer, ASTNode>();
+
+    /**
+     * ArenaAdapter constructor
+     *
+     * @param arena
+     *            the arena to build nodes from
+     * */
+    public ArenaAdapter(ArenaAst arena) {
+	this.arena = arena;
+    }
+
+    /**
+     * Build the whole program
+     *
+     * @return root of the AST
+     * */
+    public Program toProgram() {
+	return (Program) build(arena.getRoot());
+    }
+
+    /**
+     * Build one class
+     *
+     * @param node
+     *            arena id of a Class_ node
+     * @return the class
+     * */
+    public Class_ toClass(int node) {
+	return (Class_) build(node);
+    }
+
+    /**
+     * Get the arena ids of the classes of the program
+     *
+     * @return ids of the Class_ nodes, in order
+     * */
+    public int[] getClassIds() {
+	int list = arena.getChild(arena.getRoot(), 0);
+	int[] result = new int[arena.getChildCount(list)];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = arena.getChild(list, i);
+	return result;
+    }
+
+    /**
+     * Copy the expression types (and up-cast flags) of every expression
+     * built since the last call back into the arena, and forget those
+     * expressions
+     * */
+    public void saveTypes() {
+	for (int i = 0; i < exprs.size(); i++) {
+	    Expr expr = exprs.get(i);
+	    int id = ids.get(i);
+	    arena.type[id] = expr.getExprType() == null ? -1 : NamePool
+		    .id(NamePool.intern(expr.getExprType()));
+	    if (expr instanceof CastExpr)
+		arena.name[id] = ((CastExpr) expr).getUpCast() ? 1 : 0;
+	}
+	exprs.clear();
+	ids.clear();
+    }
+
+    /**
+     * Name of a NamePool id, or null for -1
+     * */
+    private static String name(int id) {
+	return id < 0 ? null : NamePool.name(id);
+    }
+
+    /**
+     * Get child i of a node, already built (null if missing)
+     * */
+    private ASTNode child(int node, int i) {
+	int c = arena.getChild(node, i);
+	return c < 0 ? null : built.get(c);
+    }
+
+    /**
+     * Build expression child i of a node
+     * */
+    private Expr expr(int node, int i) {
+	return (Expr) child(node, i);
+    }
+
+    /**
+     * Add the children of a list node to a list
+     * */
+    private ListNode list(int node, ListNode list) {
+	for (int i = 0; i < arena.getChildCount(node); i++)
+	    list.addElement(child(node, i));
+	return list;
+    }
+
+    /**
+     * Build a node and its children. The nodes are built children first,
+     * from an explicit stack rather than by recursion, as expressions can
+     * be nested arbitrarily deep.
+     * */
+    private ASTNode build(int root) {
+	// list the nodes in preorder, the children of each last to first;
+	// reversed, that puts every node after its children
+	ArrayList<Integer> order = new ArrayList<Integer>();
+	ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+	stack.push(root);
+	while (!stack.isEmpty()) {
+	    int node = stack.pop();
+	    order.add(node);
+	    for (int i = 0; i < arena.getChildCount(node); i++) {
+		if (arena.getChild(node, i) >= 0)
+		    stack.push(arena.getChild(node, i));
+	    }
+	}
+	Collections.reverse(order);
+
+	for (int node : order) {
+	    ASTNode result = make(node);
+	    if (result instanceof Expr) {
+		Expr expr = (Expr) result;
+		if (arena.type[node] >= 0)
+		    expr.setExprType(NamePool.name(arena.type[node]));
+		exprs.add(expr);
+		ids.add(node);
+	    }
+	    built.put(node, result);
+	}
+	ASTNode result = built.get(root);
+	built.clear();
+	return result;
+    }
+
+    /**
+     * Build a node of the right class for its kind
+     * */
+    private ASTNode make(int node) {
+	int ln = arena.getLineNum(node);
+	int kind = arena.kind[node];
+	// constants and casts use the name slot for something else
+	String name = kind == AstCache.CAST_EXPR
+		|| kind >= AstCache.CONST_INT_EXPR ? null : name(arena.name[node]);
+	String name2 = name(arena.name2[node]);
+
+	switch (kind) {
+	case AstCache.PROGRAM:
+	    return new Program(ln, (ClassList) child(node, 0));
+	case AstCache.CLASS_LIST:
+	    return list(node, new ClassList(ln));
+	case AstCache.CLASS:
+	    return new Class_(ln, arena.getFilename(node), name, name2,
+		    (MemberList) child(node, 0));
+	case AstCache.MEMBER_LIST:
+	    return list(node, new MemberList(ln));
+	case AstCache.FIELD:
+	    return new Field(ln, name2, name, expr(node, 0));
+	case AstCache.METHOD:
+	    return new Method(ln, name2, name, (FormalList) child(node, 0),
+		    (StmtList) child(node, 1));
+	case AstCache.FORMAL_LIST:
+	    return list(node, new FormalList(ln));
+	case AstCache.FORMAL:
+	    return new Formal(ln, name2, name);
+	case AstCache.STMT_LIST:
+	    return list(node, new StmtList(ln));
+	case AstCache.DECL_STMT:
+	    return new DeclStmt(ln, name2, name, expr(node, 0));
+	case AstCache.EXPR_STMT:
+	    return new ExprStmt(ln, expr(node, 0));
+	case AstCache.IF_STMT:
+	    return new IfStmt(ln, expr(node, 0), (Stmt) child(node, 1),
+		    (Stmt) child(node, 2));
+	case AstCache.WHILE_STMT:
+	    return new WhileStmt(ln, expr(node, 0), (Stmt) child(node, 1));
+	case AstCache.FOR_STMT:
+	    return new ForStmt(ln, expr(node, 0), expr(node, 1),
+		    expr(node, 2), (Stmt) child(node, 3));
+	case AstCache.BREAK_STMT:
+	    return new BreakStmt(ln);
+	case AstCache.BLOCK_STMT:
+	    return new BlockStmt(ln, (StmtList) child(node, 0));
+	case AstCache.RETURN_STMT:
+	    return new ReturnStmt(ln, expr(node, 0));
+	case AstCache.EXPR_LIST:
+	    return list(node, new ExprList(ln));
+	case AstCache.DISPATCH_EXPR:
+	    return new DispatchExpr(ln, expr(node, 0), name,
+		    (ExprList) child(node, 1));
+	case AstCache.NEW_EXPR:
+	    return new NewExpr(ln, name2);
+	case AstCache.NEW_ARRAY_EXPR:
+	    return new NewArrayExpr(ln, name2, expr(node, 0));
+	case AstCache.INSTANCEOF_EXPR:
+	    return new InstanceofExpr(ln, expr(node, 0), name2);
+	case AstCache.CAST_EXPR:
+	    CastExpr cast = new CastExpr(ln, name2, expr(node, 0));
+	    cast.setUpCast(arena.name[node] == 1);
+	    return cast;
+	case AstCache.ASSIGN_EXPR:
+	    return new AssignExpr(ln, name2, name, expr(node, 0));
+	case AstCache.ARRAY_ASSIGN_EXPR:
+	    return new ArrayAssignExpr(ln, name2, name, expr(node, 0), expr(
+		    node, 1));
+	case AstCache.COMP_EQ_EXPR:
+	    return new BinaryCompEqExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.COMP_NE_EXPR:
+	    return new BinaryCompNeExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.COMP_LT_EXPR:
+	    return new BinaryCompLtExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.COMP_LEQ_EXPR:
+	    return new BinaryCompLeqExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.COMP_GT_EXPR:
+	    return new BinaryCompGtExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.COMP_GEQ_EXPR:
+	    return new BinaryCompGeqExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.ARITH_PLUS_EXPR:
+	    return new BinaryArithPlusExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.ARITH_MINUS_EXPR:
+	    return new BinaryArithMinusExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.ARITH_TIMES_EXPR:
+	    return new BinaryArithTimesExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.ARITH_DIVIDE_EXPR:
+	    return new BinaryArithDivideExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.ARITH_MODULUS_EXPR:
+	    return new BinaryArithModulusExpr(ln, expr(node, 0),
+		    expr(node, 1));
+	case AstCache.LOGIC_AND_EXPR:
+	    return new BinaryLogicAndExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.LOGIC_OR_EXPR:
+	    return new BinaryLogicOrExpr(ln, expr(node, 0), expr(node, 1));
+	case AstCache.NEG_EXPR:
+	    return new UnaryNegExpr(ln, expr(node, 0));
+	case AstCache.NOT_EXPR:
+	    return new UnaryNotExpr(ln, expr(node, 0));
+	case AstCache.PRE_INCR_EXPR:
+	    return new UnaryIncrExpr(ln, expr(node, 0), false);
+	case AstCache.POST_INCR_EXPR:
+	    return new UnaryIncrExpr(ln, expr(node, 0), true);
+	case AstCache.PRE_DECR_EXPR:
+	    return new UnaryDecrExpr(ln, expr(node, 0), false);
+	case AstCache.POST_DECR_EXPR:
+	    return new UnaryDecrExpr(ln, expr(node, 0), true);
+	case AstCache.VAR_EXPR:
+	    return new VarExpr(ln, expr(node, 0), name);
+	case AstCache.ARRAY_EXPR:
+	    return new ArrayExpr(ln, expr(node, 0), name, expr(node, 1));
+	case AstCache.CONST_INT_EXPR:
+	    return new ConstIntExpr(ln, arena.constants.get(arena.name[node]));
+	case AstCache.CONST_BOOLEAN_EXPR:
+	    return new ConstBooleanExpr(ln,
+		    arena.constants.get(arena.name[node]));
+	case AstCache.CONST_STRING_EXPR:
+	    return new ConstStringExpr(ln,
+		    arena.constants.get(arena.name[node]));
+	default:
+	    throw new IllegalStateException("bad arena node kind " + kind);
+	}
+    }
+}
@@ -0,0 +1,240 @@
+package parser;
+
+import java.util.ArrayList;
+
+/**
+ * A compact, struct-of-arrays form of an AST. A node is an int id indexing
+ * parallel arrays:
+ *
+ * <pre>
+ * kind      node kind (one of the AstCache tags)
+ * pos       packed source position: file index and line number
+ * name      NamePool id of the node's name (a constant's index for
+ *           constants, 1 for an up-cast)
+ * name2     NamePool id of the node's type (a class's parent, a
+ *           method's return type, an assignment's reference name)
+ * type      NamePool id of the expression type found by semantic
+ *           analysis, or -1
+ * children  start of the node's children in the child pool
+ * count     number of children
+ * </pre>
+ *
+ * The children of a node are consecutive entries of a shared child pool,
+ * in the order AstWriter writes them, with -1 for a missing child; lists
+ * are just nodes with any number of children. Filenames are stored once,
+ * in a file table. Strings that are not identifiers (constants) are kept
+ * in a constant table.
+ *
+ * Visitors run over an ArenaAst through ArenaAdapter, which builds
+ * ordinary AST nodes for one class at a time.
+ * */
+public class ArenaAst {
+    /** Bits of a packed position used for the line (+1, so that built-in
+     * nodes at line -1 fit) */
+    private static final int LINE_BITS = 22;
+
+    /** Node arrays, indexed by node id */
+    int[] kind, pos, name, name2, type, children, count;
+
+    /** Number of nodes */
+    int size = 0;
+
+    /** Child pool */
+    int[] pool;
+
+    /** Number of used entries in the child pool */
+    int poolSize = 0;
+
+    /** File table */
+    ArrayList<String> files = new ArrayList<String>();
+
+    /** Constant table */
+    ArrayList<String> constants = new ArrayList<String>();
+
+    /**
+     * ArenaAst constructor
+     *
+     * @param capacity
+     *            expected number of nodes
+     * */
+    public ArenaAst(int capacity) {
+	capacity = Math.max(capacity, 16);
+	kind = new int[capacity];
+	pos = new int[capacity];
+	name = new int[capacity];
+	name2 = new int[capacity];
+	type = new int[capacity];
+	children = new int[capacity];
+	count = new int[capacity];
+	pool = new int[capacity];
+    }
+
+    /**
+     * Add a node
+     *
+     * @param k
+     *            kind of the node
+     * @param file
+     *            index of its file in the file table
+     * @param line
+     *            its line number
+     * @param numChildren
+     *            number of child slots to reserve
+     * @return id of the new node
+     * */
+    int add(int k, int file, int line, int numChildren) {
+	if (size == kind.length) {
+	    int n = Math.max(size * 2, 16);
+	    kind = grow(kind, n);
+	    pos = grow(pos, n);
+	    name = grow(name, n);
+	    name2 = grow(name2, n);
+	    type = grow(type, n);
+	    children = grow(children, n);
+	    count = grow(count, n);
+	}
+	if (poolSize + numChildren > pool.length)
+	    pool = grow(pool, Math.max(pool.length * 2, poolSize + numChildren));
+	if (file >= 1 << (32 - LINE_BITS) || line + 1 >= 1 << LINE_BITS)
+	    throw new IllegalStateException("too many files or lines");
+
+	int id = size++;
+	kind[id] = k;
+	pos[id] = file << LINE_BITS | (line + 1);
+	name[id] = name2[id] = type[id] = -1;
+	children[id] = poolSize;
+	count[id] = numChildren;
+	poolSize += numChildren;
+	return id;
+    }
+
+    /**
+     * Copy an array into a bigger one
+     * */
+    private static int[] grow(int[] a, int n) {
+	int[] bigger = new int[n];
+	System.arraycopy(a, 0, bigger, 0, a.length);
+	return bigger;
+    }
+
+    /**
+     * Release the unused capacity of the node arrays and the child pool,
+     * once no more nodes will be added
+     * */
+    public void trim() {
+	kind = shrink(kind, size);
+	pos = shrink(pos, size);
+	name = shrink(name, size);
+	name2 = shrink(name2, size);
+	type = shrink(type, size);
+	children = shrink(children, size);
+	count = shrink(count, size);
+	pool = shrink(pool, poolSize);
+    }
+
+    /**
+     * Copy the first n elements of an array into an array of that length
+     * */
+    private static int[] shrink(int[] a, int n) {
+	if (a.length == n)
+	    return a;
+	int[] smaller = new int[n];
+	System.arraycopy(a, 0, smaller, 0, n);
+	return smaller;
+    }
+
+    /**
+     * Get the id of a file in the file table, adding it if necessary
+     * */
+    int file(String filename) {
+	int i = files.lastIndexOf(filename);
+	if (i < 0) {
+	    files.add(filename);
+	    i = files.size() - 1;
+	}
+	return i;
+    }
+
+    /**
+     * Add a constant to the constant table
+     * */
+    int constant(String s) {
+	constants.add(s);
+	return constants.size() - 1;
+    }
+
+    /**
+     * Get the number of nodes
+     *
+     * @return the number of nodes
+     * */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Get the kind of a node
+     *
+     * @param node
+     *            node id
+     * @return one of the AstCache tags
+     * */
+    public int getKind(int node) {
+	return kind[node];
+    }
+
+    /**
+     * Get the line number of a node
+     *
+     * @param node
+     *            node id
+     * @return its line number
+     * */
+    public int getLineNum(int node) {
+	return (pos[node] & ((1 << LINE_BITS) - 1)) - 1;
+    }
+
+    /**
+     * Get the name of the file a node is in
+     *
+     * @param node
+     *            node id
+     * @return the filename
+     * */
+    public String getFilename(int node) {
+	return files.get(pos[node] >>> LINE_BITS);
+    }
+
+    /**
+     * Get the number of children of a node
+     *
+     * @param node
+     *            node id
+     * @return number of children (including missing ones)
+     * */
+    public int getChildCount(int node) {
+	return count[node];
+    }
+
+    /**
+     * Get a child of a node
+     *
+     * @param node
+     *            node id
+     * @param i
+     *            index of the child
+     * @return id of the child, or -1 if it is missing
+     * */
+    public int getChild(int node, int i) {
+	return pool[children[node] + i];
+    }
+
+    /**
+     * Get the id of the root (Program) node
+     *
+     * @return the root node id
+     * */
+    public int getRoot() {
+	return 0;
+    }
+}
@@ -0,0 +1,409 @@
+package parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import ast.*;
+import util.NamePool;
+import visitor.Visitor;
+
+/**
+ * Builds an ArenaAst from an ordinary AST. Each visit adds one node and
+ * returns its id (as an Integer). Its children are not visited from the
+ * visit but from a loop over an explicit stack, as expressions can be
+ * nested arbitrarily deep; they are still added in preorder.
+ * */
+public class ArenaBuilder extends Visitor {
+    /** The arena being built */
+    private ArenaAst arena;
+
+    /** File table index of the class being visited */
+    private int file = 0;
+
+    /** A child still to add: its node, and the child slot it goes in */
+    private static class Slot {
+	int id, i;
+	ASTNode node;
+
+	Slot(int id, int i, ASTNode node) {
+	    this.id = id;
+	    this.i = i;
+	    this.node = node;
+	}
+    }
+
+    /** Children still to add, the next on top */
+    private ArrayDeque<Slot> work = new ArrayDeque<Slot>();
+
+    /** Children of the node just visited, in order */
+    private ArrayList<Slot> pending = new ArrayList<Slot>();
+
+    /**
+     * Build the arena form of a program
+     *
+     * @param program
+     *            root of the AST
+     * @param capacity
+     *            expected number of nodes
+     * @return the arena, with the Program node as its root
+     * */
+    public static ArenaAst build(Program program, int capacity) {
+	ArenaBuilder builder = new ArenaBuilder();
+	builder.arena = new ArenaAst(capacity);
+	builder.arena.file("<unknown>");
+	program.accept(builder);
+	builder.addChildren();
+	while (!builder.work.isEmpty()) {
+	    Slot slot = builder.work.pop();
+	    int c = (Integer) slot.node.accept(builder);
+	    builder.arena.pool[builder.arena.children[slot.id] + slot.i] = c;
+	    builder.addChildren();
+	}
+	return builder.arena;
+    }
+
+    /**
+     * Push the children of the node just visited, the first on top
+     * */
+    private void addChildren() {
+	for (int k = pending.size() - 1; k >= 0; k--)
+	    work.push(pending.get(k));
+	pending.clear();
+    }
+
+    /**
+     * Add a node with a fixed number of children
+     * */
+    private int node(int kind, ASTNode node, int numChildren) {
+	return arena.add(kind, file, node.getLineNum(), numChildren);
+    }
+
+    /**
+     * Add child i of a node (-1 if missing) once the node's visit is done
+     * */
+    private void child(int id, int i, ASTNode child) {
+	if (child == null)
+	    arena.pool[arena.children[id] + i] = -1;
+	else
+	    pending.add(new Slot(id, i, child));
+    }
+
+    /**
+     * NamePool id of a string, or -1 for null
+     * */
+    private static int id(String s) {
+	return s == null ? -1 : NamePool.id(NamePool.intern(s));
+    }
+
+    /**
+     * Add a list node
+     * */
+    private Integer list(int kind, ListNode node) {
+	int id = node(kind, node, node.getSize());
+	int i = 0;
+	for (Iterator<ASTNode> it = node.getIterator(); it.hasNext();)
+	    child(id, i++, it.next());
+	return id;
+    }
+
+    /**
+     * Add a binary expression
+     * */
+    private Integer binary(int kind, BinaryExpr node) {
+	int id = expr(kind, node, 2);
+	child(id, 0, node.getLeftExpr());
+	child(id, 1, node.getRightExpr());
+	return id;
+    }
+
+    /**
+     * Add a unary expression
+     * */
+    private Integer unary(int kind, UnaryExpr node) {
+	int id = expr(kind, node, 1);
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    /**
+     * Add an expression node, keeping its type if it has one
+     * */
+    private int expr(int kind, Expr node, int numChildren) {
+	int id = node(kind, node, numChildren);
+	arena.type[id] = id(node.getExprType());
+	return id;
+    }
+
+    /**
+     * Add a constant
+     * */
+    private Integer constant(int kind, ConstExpr node) {
+	int id = expr(kind, node, 0);
+	arena.name[id] = arena.constant(node.getConstant());
+	return id;
+    }
+
+    public Object visit(Program node) {
+	int id = node(AstCache.PROGRAM, node, 1);
+	child(id, 0, node.getClassList());
+	return id;
+    }
+
+    public Object visit(ClassList node) {
+	return list(AstCache.CLASS_LIST, node);
+    }
+
+    public Object visit(Class_ node) {
+	file = arena.file(node.getFilename());
+	int id = node(AstCache.CLASS, node, 1);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getParent());
+	child(id, 0, node.getMemberList());
+	return id;
+    }
+
+    public Object visit(MemberList node) {
+	return list(AstCache.MEMBER_LIST, node);
+    }
+
+    public Object visit(Field node) {
+	int id = node(AstCache.FIELD, node, 1);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getType());
+	child(id, 0, node.getInit());
+	return id;
+    }
+
+    public Object visit(Method node) {
+	int id = node(AstCache.METHOD, node, 2);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getReturnType());
+	child(id, 0, node.getFormalList());
+	child(id, 1, node.getStmtList());
+	return id;
+    }
+
+    public Object visit(FormalList node) {
+	return list(AstCache.FORMAL_LIST, node);
+    }
+
+    public Object visit(Formal node) {
+	int id = node(AstCache.FORMAL, node, 0);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getType());
+	return id;
+    }
+
+    public Object visit(StmtList node) {
+	return list(AstCache.STMT_LIST, node);
+    }
+
+    public Object visit(DeclStmt node) {
+	int id = node(AstCache.DECL_STMT, node, 1);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getType());
+	child(id, 0, node.getInit());
+	return id;
+    }
+
+    public Object visit(ExprStmt node) {
+	int id = node(AstCache.EXPR_STMT, node, 1);
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    public Object visit(IfStmt node) {
+	int id = node(AstCache.IF_STMT, node, 3);
+	child(id, 0, node.getPredExpr());
+	child(id, 1, node.getThenStmt());
+	child(id, 2, node.getElseStmt());
+	return id;
+    }
+
+    public Object visit(WhileStmt node) {
+	int id = node(AstCache.WHILE_STMT, node, 2);
+	child(id, 0, node.getPredExpr());
+	child(id, 1, node.getBodyStmt());
+	return id;
+    }
+
+    public Object visit(ForStmt node) {
+	int id = node(AstCache.FOR_STMT, node, 4);
+	child(id, 0, node.getInitExpr());
+	child(id, 1, node.getPredExpr());
+	child(id, 2, node.getUpdateExpr());
+	child(id, 3, node.getBodyStmt());
+	return id;
+    }
+
+    public Object visit(BreakStmt node) {
+	return node(AstCache.BREAK_STMT, node, 0);
+    }
+
+    public Object visit(BlockStmt node) {
+	int id = node(AstCache.BLOCK_STMT, node, 1);
+	child(id, 0, node.getStmtList());
+	return id;
+    }
+
+    public Object visit(ReturnStmt node) {
+	int id = node(AstCache.RETURN_STMT, node, 1);
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    public Object visit(ExprList node) {
+	return list(AstCache.EXPR_LIST, node);
+    }
+
+    public Object visit(DispatchExpr node) {
+	int id = expr(AstCache.DISPATCH_EXPR, node, 2);
+	arena.name[id] = id(node.getMethodName());
+	child(id, 0, node.getRefExpr());
+	child(id, 1, node.getActualList());
+	return id;
+    }
+
+    public Object visit(NewExpr node) {
+	int id = expr(AstCache.NEW_EXPR, node, 0);
+	arena.name2[id] = id(node.getType());
+	return id;
+    }
+
+    public Object visit(NewArrayExpr node) {
+	int id = expr(AstCache.NEW_ARRAY_EXPR, node, 1);
+	arena.name2[id] = id(node.getType());
+	child(id, 0, node.getSize());
+	return id;
+    }
+
+    public Object visit(InstanceofExpr node) {
+	int id = expr(AstCache.INSTANCEOF_EXPR, node, 1);
+	arena.name2[id] = id(node.getType());
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    public Object visit(CastExpr node) {
+	int id = expr(AstCache.CAST_EXPR, node, 1);
+	arena.name[id] = node.getUpCast() ? 1 : 0;
+	arena.name2[id] = id(node.getType());
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    public Object visit(AssignExpr node) {
+	int id = expr(AstCache.ASSIGN_EXPR, node, 1);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getRefName());
+	child(id, 0, node.getExpr());
+	return id;
+    }
+
+    public Object visit(ArrayAssignExpr node) {
+	int id = expr(AstCache.ARRAY_ASSIGN_EXPR, node, 2);
+	arena.name[id] = id(node.getName());
+	arena.name2[id] = id(node.getRefName());
+	child(id, 0, node.getIndex());
+	child(id, 1, node.getExpr());
+	return id;
+    }
+
+    public Object visit(BinaryCompEqExpr node) {
+	return binary(AstCache.COMP_EQ_EXPR, node);
+    }
+
+    public Object visit(BinaryCompNeExpr node) {
+	return binary(AstCache.COMP_NE_EXPR, node);
+    }
+
+    public Object visit(BinaryCompLtExpr node) {
+	return binary(AstCache.COMP_LT_EXPR, node);
+    }
+
+    public Object visit(BinaryCompLeqExpr node) {
+	return binary(AstCache.COMP_LEQ_EXPR, node);
+    }
+
+    public Object visit(BinaryCompGtExpr node) {
+	return binary(AstCache.COMP_GT_EXPR, node);
+    }
+
+    public Object visit(BinaryCompGeqExpr node) {
+	return binary(AstCache.COMP_GEQ_EXPR, node);
+    }
+
+    public Object visit(BinaryArithPlusExpr node) {
+	return binary(AstCache.ARITH_PLUS_EXPR, node);
+    }
+
+    public Object visit(BinaryArithMinusExpr node) {
+	return binary(AstCache.ARITH_MINUS_EXPR, node);
+    }
+
+    public Object visit(BinaryArithTimesExpr node) {
+	return binary(AstCache.ARITH_TIMES_EXPR, node);
+    }
+
+    public Object visit(BinaryArithDivideExpr node) {
+	return binary(AstCache.ARITH_DIVIDE_EXPR, node);
+    }
+
+    public Object visit(BinaryArithModulusExpr node) {
+	return binary(AstCache.ARITH_MODULUS_EXPR, node);
+    }
+
+    public Object visit(BinaryLogicAndExpr node) {
+	return binary(AstCache.LOGIC_AND_EXPR, node);
+    }
+
+    public Object visit(BinaryLogicOrExpr node) {
+	return binary(AstCache.LOGIC_OR_EXPR, node);
+    }
+
+    public Object visit(UnaryNegExpr node) {
+	return unary(AstCache.NEG_EXPR, node);
+    }
+
+    public Object visit(UnaryNotExpr node) {
+	return unary(AstCache.NOT_EXPR, node);
+    }
+
+    public Object visit(UnaryIncrExpr node) {
+	return unary(node.isPostfix() ? AstCache.POST_INCR_EXPR
+		: AstCache.PRE_INCR_EXPR, node);
+    }
+
+    public Object visit(UnaryDecrExpr node) {
+	return unary(node.isPostfix() ? AstCache.POST_DECR_EXPR
+		: AstCache.PRE_DECR_EXPR, node);
+    }
+
+    public Object visit(VarExpr node) {
+	int id = expr(AstCache.VAR_EXPR, node, 1);
+	arena.name[id] = id(node.getName());
+	child(id, 0, node.getRef());
+	return id;
+    }
+
+    public Object visit(ArrayExpr node) {
+	int id = expr(AstCache.ARRAY_EXPR, node, 2);
+	arena.name[id] = id(node.getName());
+	child(id, 0, node.getRef());
+	child(id, 1, node.getIndex());
+	return id;
+    }
+
+    public Object visit(ConstIntExpr node) {
+	return constant(AstCache.CONST_INT_EXPR, node);
+    }
+
+    public Object visit(ConstBooleanExpr node) {
+	return constant(AstCache.CONST_BOOLEAN_EXPR, node);
+    }
+
+    public Object visit(ConstStringExpr node) {
+	return constant(AstCache.CONST_STRING_EXPR, node);
+    }
+}
@@ -0,0 +1,60 @@
+package parser;
+
+import java.io.*;
+
+import ast.Program;
+
+/**
+ * Reports the heap used per source line by the AST of a large generated
+ * program, as ordinary AST objects and as an ArenaAst.
+ *
+ * Usage: java parser.ArenaHeapReport [statements]
+ * */
+public class ArenaHeapReport {
+    public static void main(String[] args) throws IOException {
+	int stmts = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+	File src = File.createTempFile("bench", ".btm");
+	src.deleteOnExit();
+	ParserBenchmark.generate(src, stmts);
+	long lines = 0;
+	BufferedReader in = new BufferedReader(new FileReader(src));
+	while (in.readLine() != null)
+	    lines++;
+	in.close();
+	String[] filenames = { src.getPath() };
+
+	// parse once first so that the parser's own classes and the
+	// NamePool are already loaded and filled in both measurements
+	new Parser(filenames, false).parse();
+
+	long base = usedHeap();
+	Program program = new Parser(filenames, false).parse();
+	long objects = usedHeap() - base;
+
+	ArenaAst arena = ArenaBuilder.build(program, (int) lines * 4);
+	// count only the nodes, not the capacity reserved for them
+	arena.trim();
+	program = null;
+	long compact = usedHeap() - base;
+
+	System.out.printf("%d lines, %d nodes%n", lines, arena.size());
+	System.out.printf("AST objects: %d bytes, %.1f bytes/line%n", objects,
+		(double) objects / lines);
+	System.out.printf("ArenaAst:    %d bytes, %.1f bytes/line%n", compact,
+		(double) compact / lines);
+    }
+
+    /**
+     * Heap in use after garbage collection
+     * */
+    private static long usedHeap() {
+	Runtime rt = Runtime.getRuntime();
+	long used = Long.MAX_VALUE;
+	for (int i = 0; i < 5; i++) {
+	    System.gc();
+	    used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+	}
+	return used;
+    }
+}
@@ -0,0 +1,145 @@
+package parser;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import ast.Program;
+
+/**
+ * A directory of binary AST files (.bast), one per source file contents, so
+ * that an unchanged source file is decoded instead of being scanned and
+ * parsed again. An entry is named after a hash of the source file's name
+ * and contents, and starts with a header that records both, so a stale or
+ * colliding entry is never used:
+ *
+ * <pre>
+ * int  MAGIC, VERSION
+ * int  length of the source
+ * long hash of the source
+ * UTF  name of the source file
+ * the tree, as written by AstWriter
+ * </pre>
+ *
+ * Only programs that parsed without errors are stored.
+ * */
+public class AstCache {
+    /** First bytes of a .bast file: "BAST" */
+    public static final int MAGIC = 0x42415354;
+
+    /** Format version, changed whenever the encoding changes */
+    public static final int VERSION = 1;
+
+    /** Node tags */
+    public static final int NULL = 0, PROGRAM = 1, CLASS_LIST = 2, CLASS = 3,
+	    MEMBER_LIST = 4, FIELD = 5, METHOD = 6, FORMAL_LIST = 7,
+	    FORMAL = 8, STMT_LIST = 9, DECL_STMT = 10, EXPR_STMT = 11,
+	    IF_STMT = 12, WHILE_STMT = 13, FOR_STMT = 14, BREAK_STMT = 15,
+	    BLOCK_STMT = 16, RETURN_STMT = 17, EXPR_LIST = 18,
+	    DISPATCH_EXPR = 19, NEW_EXPR = 20, NEW_ARRAY_EXPR = 21,
+	    INSTANCEOF_EXPR = 22, CAST_EXPR = 23, ASSIGN_EXPR = 24,
+	    ARRAY_ASSIGN_EXPR = 25, COMP_EQ_EXPR = 26, COMP_NE_EXPR = 27,
+	    COMP_LT_EXPR = 28, COMP_LEQ_EXPR = 29, COMP_GT_EXPR = 30,
+	    COMP_GEQ_EXPR = 31, ARITH_PLUS_EXPR = 32, ARITH_MINUS_EXPR = 33,
+	    ARITH_TIMES_EXPR = 34, ARITH_DIVIDE_EXPR = 35,
+	    ARITH_MODULUS_EXPR = 36, LOGIC_AND_EXPR = 37, LOGIC_OR_EXPR = 38,
+	    NEG_EXPR = 39, NOT_EXPR = 40, PRE_INCR_EXPR = 41,
+	    POST_INCR_EXPR = 42, PRE_DECR_EXPR = 43, POST_DECR_EXPR = 44,
+	    VAR_EXPR = 45, ARRAY_EXPR = 46, CONST_INT_EXPR = 47,
+	    CONST_BOOLEAN_EXPR = 48, CONST_STRING_EXPR = 49;
+
+    /** Directory holding the entries */
+    private File dir;
+
+    /**
+     * AstCache constructor
+     *
+     * @param dir
+     *            directory holding the entries, created if necessary
+     * */
+    public AstCache(String dir) {
+	this.dir = new File(dir);
+	this.dir.mkdirs();
+    }
+
+    /**
+     * Get the entry file for a source file
+     * */
+    private File entry(String filename, long hash) {
+	long key = hash ^ filename.hashCode() * 0x9e3779b97f4a7c15L;
+	return new File(dir, Long.toHexString(key) + ".bast");
+    }
+
+    /**
+     * Load the AST of a source file
+     *
+     * @param filename
+     *            name of the source file
+     * @param src
+     *            contents of the source file
+     * @return the cached AST, or null if there is no usable entry
+     * */
+    public Program load(String filename, byte[] src) {
+	long hash = ClassSpanCache.hash(src, 0, src.length);
+	byte[] buf;
+	try {
+	    buf = Files.readAllBytes(entry(filename, hash).toPath());
+	} catch (IOException e) {
+	    return null; // no entry
+	}
+
+	try {
+	    ByteArrayInputStream bytes = new ByteArrayInputStream(buf);
+	    DataInputStream header = new DataInputStream(bytes);
+	    if (header.readInt() != MAGIC || header.readInt() != VERSION
+		    || header.readInt() != src.length || header.readLong() != hash
+		    || !header.readUTF().equals(filename))
+		return null;
+	    return new AstReader(buf, buf.length - bytes.available()).read();
+	} catch (IOException e) {
+	    return null; // truncated header
+	} catch (IllegalStateException e) {
+	    return null; // malformed tree: parse instead
+	}
+    }
+
+    /**
+     * Store the AST of a source file. Failures are ignored, since the
+     * source can always be parsed again.
+     *
+     * @param filename
+     *            name of the source file
+     * @param src
+     *            contents of the source file
+     * @param program
+     *            the AST parsed from src
+     * */
+    public void store(String filename, byte[] src, Program program) {
+	long hash = ClassSpanCache.hash(src, 0, src.length);
+	File file = entry(filename, hash);
+	try {
+	    // write a temporary file and rename it, so that a concurrent
+	    // load never sees a partial entry
+	    File tmp = File.createTempFile("bast", ".tmp", dir);
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(new FileOutputStream(tmp)));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(src.length);
+		out.writeLong(hash);
+		out.writeUTF(filename);
+		out.write(new AstWriter().write(program));
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    } finally {
+		out.close();
+		tmp.delete(); // only still there if something failed
+	    }
+	} catch (IOException e) {
+	    // cache directory not writable: just don't cache
+	}
+    }
+}
@@ -0,0 +1,63 @@
+package parser;
+
+import java.io.*;
+
+/**
+ * Compares parsing a large generated Bantam program from source (cold, with
+ * no AST cache) against loading its AST from the binary AST cache.
+ *
+ * Usage: java parser.AstCacheBenchmark [statements [runs]]
+ * */
+public class AstCacheBenchmark {
+    /** Number of untimed warm-up runs */
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws IOException {
+	int stmts = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+	File src = File.createTempFile("bench", ".btm");
+	src.deleteOnExit();
+	ParserBenchmark.generate(src, stmts);
+	File dir = File.createTempFile("bast", "");
+	dir.delete();
+	String[] filenames = { src.getPath() };
+
+	long parse = time(filenames, null, runs);
+	// the first warm-up run stores the entry, the rest load it
+	long load = time(filenames, dir.getPath(), runs);
+
+	System.out.printf("%d statements, %d bytes: parse %.1f ms, "
+		+ "cache load %.1f ms (%.1fx)%n", stmts, src.length(),
+		parse / 1e6, load / 1e6, (double) parse / load);
+
+	for (File f : dir.listFiles())
+	    f.delete();
+	dir.delete();
+    }
+
+    /**
+     * Best time of several parses
+     *
+     * @param filenames
+     *            files to parse
+     * @param cacheDir
+     *            AST cache directory, or null to parse from source
+     * @param runs
+     *            number of timed runs
+     * @return the shortest run, in nanoseconds
+     * */
+    private static long time(String[] filenames, String cacheDir, int runs) {
+	long best = Long.MAX_VALUE;
+	for (int i = -WARMUP; i < runs; i++) {
+	    Parser parser = new Parser(filenames, false);
+	    if (cacheDir != null)
+		parser.setCacheDir(cacheDir);
+	    long start = System.nanoTime();
+	    parser.parse();
+	    if (i >= 0)
+		best = Math.min(best, System.nanoTime() - start);
+	}
+	return best;
+    }
+}
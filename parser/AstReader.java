@@ -0,0 +1,397 @@
+package parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import ast.*;
+import util.NamePool;
+
+/**
+ * Decodes an AST written by AstWriter. Identifiers are interned in the
+ * NamePool as they would have been by the scanner; constants and filenames
+ * are not.
+ * */
+public class AstReader {
+    /** Encoded bytes */
+    private byte[] buf;
+
+    /** Current position in buf */
+    private int pos;
+
+    /** String table, indexed from 1 (0 is null), filled in as strings are
+     * first read */
+    private String[] strings = new String[256];
+
+    /** Which strings in the table have been interned */
+    private boolean[] interned = new boolean[256];
+
+    /** Number of strings in the table */
+    private int numStrings = 0;
+
+    /** Added to every line number read */
+    private int baseLine;
+
+    /**
+     * AstReader constructor
+     *
+     * @param buf
+     *            encoded tree
+     * @param pos
+     *            offset of the root node
+     * */
+    public AstReader(byte[] buf, int pos) {
+	this(buf, pos, 0);
+    }
+
+    /**
+     * AstReader constructor, for a tree written with line numbers relative
+     * to a base line (see AstWriter.write(Class_, int))
+     *
+     * @param buf
+     *            encoded tree
+     * @param pos
+     *            offset of the root node
+     * @param baseLine
+     *            line to read the line numbers relative to
+     * */
+    public AstReader(byte[] buf, int pos, int baseLine) {
+	this.buf = buf;
+	this.pos = pos;
+	this.baseLine = baseLine;
+	interned[0] = true;
+    }
+
+    /**
+     * Decode a program
+     *
+     * @return root of the AST
+     * @throws IllegalStateException
+     *             if the encoding is malformed
+     * */
+    public Program read() {
+	try {
+	    ASTNode node = node();
+	    if (node instanceof Program)
+		return (Program) node;
+	} catch (ClassCastException e) {
+	    // node of the wrong kind: malformed
+	} catch (IndexOutOfBoundsException e) {
+	    // truncated
+	}
+	throw new IllegalStateException("malformed AST cache entry");
+    }
+
+    /**
+     * Decode a class written on its own
+     *
+     * @return the class
+     * @throws IllegalStateException
+     *             if the encoding is malformed
+     * */
+    public Class_ readClass() {
+	try {
+	    ASTNode node = node();
+	    if (node instanceof Class_)
+		return (Class_) node;
+	} catch (ClassCastException e) {
+	    // node of the wrong kind: malformed
+	} catch (IndexOutOfBoundsException e) {
+	    // truncated
+	}
+	throw new IllegalStateException("malformed AST cache entry");
+    }
+
+    /**
+     * Read a varint
+     * */
+    int readInt() {
+	int n = 0;
+	for (int shift = 0;; shift += 7) {
+	    int b = buf[pos++];
+	    n |= (b & 0x7f) << shift;
+	    if (b >= 0)
+		return n;
+	}
+    }
+
+    /**
+     * Read a string table index, adding the string to the table if this is
+     * its first occurrence
+     * */
+    private int readIndex() {
+	int index = readInt();
+	if (index <= numStrings)
+	    return index;
+	// first occurrence: the bytes follow
+	int length = readInt();
+	String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+	pos += length;
+	if (++numStrings == strings.length) {
+	    String[] bigger = new String[strings.length * 2];
+	    System.arraycopy(strings, 0, bigger, 0, strings.length);
+	    strings = bigger;
+	    boolean[] moreInterned = new boolean[interned.length * 2];
+	    System.arraycopy(interned, 0, moreInterned, 0, interned.length);
+	    interned = moreInterned;
+	}
+	strings[numStrings] = s;
+	return numStrings;
+    }
+
+    /**
+     * Read a string (possibly null)
+     * */
+    String readString() {
+	return strings[readIndex()];
+    }
+
+    /**
+     * Read an identifier (possibly null), interned in the NamePool
+     * */
+    private String readName() {
+	int index = readIndex();
+	if (!interned[index]) {
+	    strings[index] = NamePool.intern(strings[index]);
+	    interned[index] = true;
+	}
+	return strings[index];
+    }
+
+    /**
+     * What follows the line number of each kind of node, by tag: a string
+     * ('s'), an identifier ('n'), a child that may be missing ('c'), or
+     * the elements of a list ('l'), in the order AstWriter writes them
+     * */
+    private static final String[] SHAPES = new String[AstCache.CONST_STRING_EXPR + 1];
+    static {
+	shape("c", AstCache.PROGRAM, AstCache.EXPR_STMT, AstCache.BLOCK_STMT,
+		AstCache.RETURN_STMT, AstCache.NEG_EXPR, AstCache.NOT_EXPR,
+		AstCache.PRE_INCR_EXPR, AstCache.POST_INCR_EXPR,
+		AstCache.PRE_DECR_EXPR, AstCache.POST_DECR_EXPR);
+	shape("l", AstCache.CLASS_LIST, AstCache.MEMBER_LIST,
+		AstCache.FORMAL_LIST, AstCache.STMT_LIST, AstCache.EXPR_LIST);
+	shape("snnc", AstCache.CLASS);
+	shape("nnc", AstCache.FIELD, AstCache.DECL_STMT, AstCache.ASSIGN_EXPR);
+	shape("nncc", AstCache.METHOD, AstCache.ARRAY_ASSIGN_EXPR);
+	shape("nn", AstCache.FORMAL);
+	shape("ccc", AstCache.IF_STMT);
+	shape("cc", AstCache.WHILE_STMT);
+	shape("cccc", AstCache.FOR_STMT);
+	shape("", AstCache.BREAK_STMT);
+	shape("cnc", AstCache.DISPATCH_EXPR, AstCache.ARRAY_EXPR);
+	shape("n", AstCache.NEW_EXPR);
+	shape("nc", AstCache.NEW_ARRAY_EXPR, AstCache.CAST_EXPR);
+	shape("cn", AstCache.INSTANCEOF_EXPR, AstCache.VAR_EXPR);
+	for (int tag = AstCache.COMP_EQ_EXPR; tag <= AstCache.LOGIC_OR_EXPR; tag++)
+	    shape("cc", tag);
+	shape("s", AstCache.CONST_INT_EXPR, AstCache.CONST_BOOLEAN_EXPR,
+		AstCache.CONST_STRING_EXPR);
+    }
+
+    private static void shape(String shape, int... tags) {
+	for (int tag : tags)
+	    SHAPES[tag] = shape;
+    }
+
+    /**
+     * A node being read: its tag, line number, and the strings and children
+     * read so far
+     * */
+    private static class Frame {
+	int tag, ln;
+	String shape;
+	int step; // next character of shape
+	int count = -1; // elements of the list still to read, once known
+	ArrayList<Object> values = new ArrayList<Object>();
+
+	Frame(int tag, int ln) {
+	    if (tag < 0 || tag >= SHAPES.length || SHAPES[tag] == null)
+		throw new IllegalStateException("malformed AST cache entry");
+	    this.tag = tag;
+	    this.ln = ln;
+	    this.shape = SHAPES[tag];
+	}
+    }
+
+    /**
+     * Read a node (or NULL) and its children. The tree is read with an
+     * explicit stack of the nodes being read rather than by recursion, as
+     * expressions can be nested arbitrarily deep.
+     * */
+    private ASTNode node() {
+	int tag = buf[pos++];
+	if (tag == AstCache.NULL)
+	    return null;
+	ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+	stack.push(new Frame(tag, readInt() + baseLine));
+	for (;;) {
+	    Frame f = stack.peek();
+	    if (f.step < f.shape.length()) {
+		char c = f.shape.charAt(f.step);
+		if (c == 's') {
+		    f.values.add(readString());
+		    f.step++;
+		} else if (c == 'n') {
+		    f.values.add(readName());
+		    f.step++;
+		} else {
+		    if (c == 'l') {
+			if (f.count < 0)
+			    f.count = readInt();
+			if (f.count == 0) {
+			    f.step++;
+			    continue;
+			}
+			f.count--;
+		    } else {
+			f.step++;
+		    }
+		    tag = buf[pos++];
+		    if (tag == AstCache.NULL)
+			f.values.add(null);
+		    else
+			stack.push(new Frame(tag, readInt() + baseLine));
+		}
+		continue;
+	    }
+
+	    // all read: build the node, and give it to its parent
+	    stack.pop();
+	    ASTNode node = build(f.tag, f.ln, f.values);
+	    if (stack.isEmpty())
+		return node;
+	    stack.peek().values.add(node);
+	}
+    }
+
+    /**
+     * Add the elements of a list node
+     * */
+    private static ListNode elements(ListNode list, ArrayList<Object> v) {
+	for (Object element : v)
+	    list.addElement((ASTNode) element);
+	return list;
+    }
+
+    /**
+     * Build a node from its strings and children
+     * */
+    private static ASTNode build(int tag, int ln, ArrayList<Object> v) {
+	switch (tag) {
+	case AstCache.PROGRAM:
+	    return new Program(ln, (ClassList) v.get(0));
+	case AstCache.CLASS_LIST:
+	    return elements(new ClassList(ln), v);
+	case AstCache.CLASS:
+	    return new Class_(ln, (String) v.get(0), (String) v.get(1),
+		    (String) v.get(2), (MemberList) v.get(3));
+	case AstCache.MEMBER_LIST:
+	    return elements(new MemberList(ln), v);
+	case AstCache.FIELD:
+	    return new Field(ln, (String) v.get(0), (String) v.get(1),
+		    (Expr) v.get(2));
+	case AstCache.METHOD:
+	    return new Method(ln, (String) v.get(0), (String) v.get(1),
+		    (FormalList) v.get(2), (StmtList) v.get(3));
+	case AstCache.FORMAL_LIST:
+	    return elements(new FormalList(ln), v);
+	case AstCache.FORMAL:
+	    return new Formal(ln, (String) v.get(0), (String) v.get(1));
+	case AstCache.STMT_LIST:
+	    return elements(new StmtList(ln), v);
+	case AstCache.DECL_STMT:
+	    return new DeclStmt(ln, (String) v.get(0), (String) v.get(1),
+		    (Expr) v.get(2));
+	case AstCache.EXPR_STMT:
+	    return new ExprStmt(ln, (Expr) v.get(0));
+	case AstCache.IF_STMT:
+	    return new IfStmt(ln, (Expr) v.get(0), (Stmt) v.get(1), (Stmt) v
+		    .get(2));
+	case AstCache.WHILE_STMT:
+	    return new WhileStmt(ln, (Expr) v.get(0), (Stmt) v.get(1));
+	case AstCache.FOR_STMT:
+	    return new ForStmt(ln, (Expr) v.get(0), (Expr) v.get(1), (Expr) v
+		    .get(2), (Stmt) v.get(3));
+	case AstCache.BREAK_STMT:
+	    return new BreakStmt(ln);
+	case AstCache.BLOCK_STMT:
+	    return new BlockStmt(ln, (StmtList) v.get(0));
+	case AstCache.RETURN_STMT:
+	    return new ReturnStmt(ln, (Expr) v.get(0));
+	case AstCache.EXPR_LIST:
+	    return elements(new ExprList(ln), v);
+	case AstCache.DISPATCH_EXPR:
+	    return new DispatchExpr(ln, (Expr) v.get(0), (String) v.get(1),
+		    (ExprList) v.get(2));
+	case AstCache.NEW_EXPR:
+	    return new NewExpr(ln, (String) v.get(0));
+	case AstCache.NEW_ARRAY_EXPR:
+	    return new NewArrayExpr(ln, (String) v.get(0), (Expr) v.get(1));
+	case AstCache.INSTANCEOF_EXPR:
+	    return new InstanceofExpr(ln, (Expr) v.get(0), (String) v.get(1));
+	case AstCache.CAST_EXPR:
+	    return new CastExpr(ln, (String) v.get(0), (Expr) v.get(1));
+	case AstCache.ASSIGN_EXPR:
+	    return new AssignExpr(ln, (String) v.get(0), (String) v.get(1),
+		    (Expr) v.get(2));
+	case AstCache.ARRAY_ASSIGN_EXPR:
+	    return new ArrayAssignExpr(ln, (String) v.get(0), (String) v
+		    .get(1), (Expr) v.get(2), (Expr) v.get(3));
+	case AstCache.COMP_EQ_EXPR:
+	    return new BinaryCompEqExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.COMP_NE_EXPR:
+	    return new BinaryCompNeExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.COMP_LT_EXPR:
+	    return new BinaryCompLtExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.COMP_LEQ_EXPR:
+	    return new BinaryCompLeqExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.COMP_GT_EXPR:
+	    return new BinaryCompGtExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.COMP_GEQ_EXPR:
+	    return new BinaryCompGeqExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.ARITH_PLUS_EXPR:
+	    return new BinaryArithPlusExpr(ln, (Expr) v.get(0), (Expr) v
+		    .get(1));
+	case AstCache.ARITH_MINUS_EXPR:
+	    return new BinaryArithMinusExpr(ln, (Expr) v.get(0), (Expr) v
+		    .get(1));
+	case AstCache.ARITH_TIMES_EXPR:
+	    return new BinaryArithTimesExpr(ln, (Expr) v.get(0), (Expr) v
+		    .get(1));
+	case AstCache.ARITH_DIVIDE_EXPR:
+	    return new BinaryArithDivideExpr(ln, (Expr) v.get(0), (Expr) v
+		    .get(1));
+	case AstCache.ARITH_MODULUS_EXPR:
+	    return new BinaryArithModulusExpr(ln, (Expr) v.get(0), (Expr) v
+		    .get(1));
+	case AstCache.LOGIC_AND_EXPR:
+	    return new BinaryLogicAndExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.LOGIC_OR_EXPR:
+	    return new BinaryLogicOrExpr(ln, (Expr) v.get(0), (Expr) v.get(1));
+	case AstCache.NEG_EXPR:
+	    return new UnaryNegExpr(ln, (Expr) v.get(0));
+	case AstCache.NOT_EXPR:
+	    return new UnaryNotExpr(ln, (Expr) v.get(0));
+	case AstCache.PRE_INCR_EXPR:
+	    return new UnaryIncrExpr(ln, (Expr) v.get(0), false);
+	case AstCache.POST_INCR_EXPR:
+	    return new UnaryIncrExpr(ln, (Expr) v.get(0), true);
+	case AstCache.PRE_DECR_EXPR:
+	    return new UnaryDecrExpr(ln, (Expr) v.get(0), false);
+	case AstCache.POST_DECR_EXPR:
+	    return new UnaryDecrExpr(ln, (Expr) v.get(0), true);
+	case AstCache.VAR_EXPR:
+	    return new VarExpr(ln, (Expr) v.get(0), (String) v.get(1));
+	case AstCache.ARRAY_EXPR:
+	    return new ArrayExpr(ln, (Expr) v.get(0), (String) v.get(1),
+		    (Expr) v.get(2));
+	case AstCache.CONST_INT_EXPR:
+	    return new ConstIntExpr(ln, (String) v.get(0));
+	case AstCache.CONST_BOOLEAN_EXPR:
+	    return new ConstBooleanExpr(ln, (String) v.get(0));
+	default: // CONST_STRING_EXPR
+	    return new ConstStringExpr(ln, (String) v.get(0));
+	}
+    }
+}
@@ -0,0 +1,469 @@
+package parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import ast.*;
+import visitor.Visitor;
+
+/**
+ * Encodes an AST in the binary format read by AstReader. Nodes are written
+ * in preorder as a tag byte (one of the AstCache tags), the line number, and
+ * then the node's fields and children. Ints are written as unsigned varints
+ * and strings as an index into a string table that is built as the tree is
+ * written: the first occurrence of a string is followed by its UTF-8 bytes.
+ * A missing (null) child or string is written as the NULL tag or index 0.
+ *
+ * The tree is written with an explicit stack rather than by recursion, as
+ * expressions can be nested arbitrarily deep (the parser builds a chain
+ * such as 1+1+...+1 in a loop): visiting a node writes its tag, its line
+ * number and the strings before its first child, and pushes the rest.
+ * */
+public class AstWriter extends Visitor {
+    /** Encoded bytes */
+    private byte[] buf = new byte[1 << 16];
+
+    /** Number of bytes written */
+    private int size = 0;
+
+    /** String table indices (starting from 1) of the strings written */
+    private HashMap<String, Integer> strings = new HashMap<String, Integer>();
+
+    /** What is still to be written, the next on top: nodes, strings, and
+     * the markers below */
+    private ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    /** Line numbers are written relative to this line */
+    private int baseLine = 0;
+
+    /** Marks a missing child or string on the work stack */
+    private static final Object NO_NODE = new Object(),
+	    NO_STRING = new Object();
+
+    /**
+     * Encode a program
+     *
+     * @param program
+     *            root of the AST
+     * @return the encoded tree
+     * */
+    public byte[] write(Program program) {
+	return encode(program);
+    }
+
+    /**
+     * Encode a class on its own, with line numbers relative to a base line,
+     * so that it can be read back at another line (see AstReader)
+     *
+     * @param node
+     *            the class
+     * @param baseLine
+     *            line the class's line numbers are relative to (at most
+     *            that of any of its nodes)
+     * @return the encoded class
+     * */
+    public byte[] write(Class_ node, int baseLine) {
+	this.baseLine = baseLine;
+	return encode(node);
+    }
+
+    /**
+     * Encode a tree
+     * */
+    private byte[] encode(ASTNode root) {
+	work.push(root);
+	while (!work.isEmpty()) {
+	    Object next = work.pop();
+	    if (next == NO_NODE)
+		writeByte(AstCache.NULL);
+	    else if (next == NO_STRING)
+		writeString(null);
+	    else if (next instanceof String)
+		writeString((String) next);
+	    else
+		((ASTNode) next).accept(this);
+	}
+	byte[] result = new byte[size];
+	System.arraycopy(buf, 0, result, 0, size);
+	return result;
+    }
+
+    /**
+     * Write a byte
+     * */
+    private void writeByte(int b) {
+	if (size == buf.length) {
+	    byte[] bigger = new byte[buf.length * 2];
+	    System.arraycopy(buf, 0, bigger, 0, size);
+	    buf = bigger;
+	}
+	buf[size++] = (byte) b;
+    }
+
+    /**
+     * Write a non-negative int as a varint (7 bits per byte, low bits first)
+     * */
+    void writeInt(int n) {
+	while ((n & ~0x7f) != 0) {
+	    writeByte((n & 0x7f) | 0x80);
+	    n >>>= 7;
+	}
+	writeByte(n);
+    }
+
+    /**
+     * Write a string (possibly null) by string table index
+     * */
+    void writeString(String s) {
+	if (s == null) {
+	    writeInt(0);
+	    return;
+	}
+	Integer index = strings.get(s);
+	if (index != null) {
+	    writeInt(index);
+	    return;
+	}
+	// new string: the next index, followed by its bytes
+	strings.put(s, strings.size() + 1);
+	writeInt(strings.size());
+	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+	writeInt(bytes.length);
+	for (byte b : bytes)
+	    writeByte(b);
+    }
+
+    /**
+     * Write a node's tag and line number
+     * */
+    private void header(int tag, ASTNode node) {
+	writeByte(tag);
+	writeInt(node.getLineNum() - baseLine);
+    }
+
+    /**
+     * Push children (nodes, possibly null) and strings to be written next,
+     * in order
+     * */
+    private void then(Object... items) {
+	for (int i = items.length - 1; i >= 0; i--)
+	    work.push(items[i] != null ? items[i] : NO_NODE);
+    }
+
+    /**
+     * A string (possibly null) to push with then()
+     * */
+    private static Object string(String s) {
+	return s != null ? s : NO_STRING;
+    }
+
+    /**
+     * Write the elements of a list node, preceded by their number
+     * */
+    private void elements(int tag, ListNode node) {
+	header(tag, node);
+	writeInt(node.getSize());
+	Object[] elements = new Object[node.getSize()];
+	int i = 0;
+	for (Iterator<ASTNode> it = node.getIterator(); it.hasNext();)
+	    elements[i++] = it.next();
+	then(elements);
+    }
+
+    /**
+     * Write a binary expression
+     * */
+    private void binary(int tag, BinaryExpr node) {
+	header(tag, node);
+	then(node.getLeftExpr(), node.getRightExpr());
+    }
+
+    /**
+     * Write a unary expression
+     * */
+    private void unary(int tag, UnaryExpr node) {
+	header(tag, node);
+	then(node.getExpr());
+    }
+
+    public Object visit(Program node) {
+	header(AstCache.PROGRAM, node);
+	then(node.getClassList());
+	return null;
+    }
+
+    public Object visit(ClassList node) {
+	elements(AstCache.CLASS_LIST, node);
+	return null;
+    }
+
+    public Object visit(Class_ node) {
+	header(AstCache.CLASS, node);
+	writeString(node.getFilename());
+	writeString(node.getName());
+	writeString(node.getParent());
+	then(node.getMemberList());
+	return null;
+    }
+
+    public Object visit(MemberList node) {
+	elements(AstCache.MEMBER_LIST, node);
+	return null;
+    }
+
+    public Object visit(Field node) {
+	header(AstCache.FIELD, node);
+	writeString(node.getType());
+	writeString(node.getName());
+	then(node.getInit());
+	return null;
+    }
+
+    public Object visit(Method node) {
+	header(AstCache.METHOD, node);
+	writeString(node.getReturnType());
+	writeString(node.getName());
+	then(node.getFormalList(), node.getStmtList());
+	return null;
+    }
+
+    public Object visit(FormalList node) {
+	elements(AstCache.FORMAL_LIST, node);
+	return null;
+    }
+
+    public Object visit(Formal node) {
+	header(AstCache.FORMAL, node);
+	writeString(node.getType());
+	writeString(node.getName());
+	return null;
+    }
+
+    public Object visit(StmtList node) {
+	elements(AstCache.STMT_LIST, node);
+	return null;
+    }
+
+    public Object visit(DeclStmt node) {
+	header(AstCache.DECL_STMT, node);
+	writeString(node.getType());
+	writeString(node.getName());
+	then(node.getInit());
+	return null;
+    }
+
+    public Object visit(ExprStmt node) {
+	header(AstCache.EXPR_STMT, node);
+	then(node.getExpr());
+	return null;
+    }
+
+    public Object visit(IfStmt node) {
+	header(AstCache.IF_STMT, node);
+	then(node.getPredExpr(), node.getThenStmt(), node.getElseStmt());
+	return null;
+    }
+
+    public Object visit(WhileStmt node) {
+	header(AstCache.WHILE_STMT, node);
+	then(node.getPredExpr(), node.getBodyStmt());
+	return null;
+    }
+
+    public Object visit(ForStmt node) {
+	header(AstCache.FOR_STMT, node);
+	then(node.getInitExpr(), node.getPredExpr(), node.getUpdateExpr(),
+		node.getBodyStmt());
+	return null;
+    }
+
+    public Object visit(BreakStmt node) {
+	header(AstCache.BREAK_STMT, node);
+	return null;
+    }
+
+    public Object visit(BlockStmt node) {
+	header(AstCache.BLOCK_STMT, node);
+	then(node.getStmtList());
+	return null;
+    }
+
+    public Object visit(ReturnStmt node) {
+	header(AstCache.RETURN_STMT, node);
+	then(node.getExpr());
+	return null;
+    }
+
+    public Object visit(ExprList node) {
+	elements(AstCache.EXPR_LIST, node);
+	return null;
+    }
+
+    public Object visit(DispatchExpr node) {
+	header(AstCache.DISPATCH_EXPR, node);
+	then(node.getRefExpr(), string(node.getMethodName()), node
+		.getActualList());
+	return null;
+    }
+
+    public Object visit(NewExpr node) {
+	header(AstCache.NEW_EXPR, node);
+	writeString(node.getType());
+	return null;
+    }
+
+    public Object visit(NewArrayExpr node) {
+	header(AstCache.NEW_ARRAY_EXPR, node);
+	writeString(node.getType());
+	then(node.getSize());
+	return null;
+    }
+
+    public Object visit(InstanceofExpr node) {
+	header(AstCache.INSTANCEOF_EXPR, node);
+	then(node.getExpr(), string(node.getType()));
+	return null;
+    }
+
+    public Object visit(CastExpr node) {
+	header(AstCache.CAST_EXPR, node);
+	writeString(node.getType());
+	then(node.getExpr());
+	return null;
+    }
+
+    public Object visit(AssignExpr node) {
+	header(AstCache.ASSIGN_EXPR, node);
+	writeString(node.getRefName());
+	writeString(node.getName());
+	then(node.getExpr());
+	return null;
+    }
+
+    public Object visit(ArrayAssignExpr node) {
+	header(AstCache.ARRAY_ASSIGN_EXPR, node);
+	writeString(node.getRefName());
+	writeString(node.getName());
+	then(node.getIndex(), node.getExpr());
+	return null;
+    }
+
+    public Object visit(BinaryCompEqExpr node) {
+	binary(AstCache.COMP_EQ_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryCompNeExpr node) {
+	binary(AstCache.COMP_NE_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryCompLtExpr node) {
+	binary(AstCache.COMP_LT_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryCompLeqExpr node) {
+	binary(AstCache.COMP_LEQ_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryCompGtExpr node) {
+	binary(AstCache.COMP_GT_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryCompGeqExpr node) {
+	binary(AstCache.COMP_GEQ_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryArithPlusExpr node) {
+	binary(AstCache.ARITH_PLUS_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryArithMinusExpr node) {
+	binary(AstCache.ARITH_MINUS_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryArithTimesExpr node) {
+	binary(AstCache.ARITH_TIMES_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryArithDivideExpr node) {
+	binary(AstCache.ARITH_DIVIDE_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryArithModulusExpr node) {
+	binary(AstCache.ARITH_MODULUS_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryLogicAndExpr node) {
+	binary(AstCache.LOGIC_AND_EXPR, node);
+	return null;
+    }
+
+    public Object visit(BinaryLogicOrExpr node) {
+	binary(AstCache.LOGIC_OR_EXPR, node);
+	return null;
+    }
+
+    public Object visit(UnaryNegExpr node) {
+	unary(AstCache.NEG_EXPR, node);
+	return null;
+    }
+
+    public Object visit(UnaryNotExpr node) {
+	unary(AstCache.NOT_EXPR, node);
+	return null;
+    }
+
+    public Object visit(UnaryIncrExpr node) {
+	unary(node.isPostfix() ? AstCache.POST_INCR_EXPR
+		: AstCache.PRE_INCR_EXPR, node);
+	return null;
+    }
+
+    public Object visit(UnaryDecrExpr node) {
+	unary(node.isPostfix() ? AstCache.POST_DECR_EXPR
+		: AstCache.PRE_DECR_EXPR, node);
+	return null;
+    }
+
+    public Object visit(VarExpr node) {
+	header(AstCache.VAR_EXPR, node);
+	then(node.getRef(), string(node.getName()));
+	return null;
+    }
+
+    public Object visit(ArrayExpr node) {
+	header(AstCache.ARRAY_EXPR, node);
+	then(node.getRef(), string(node.getName()), node.getIndex());
+	return null;
+    }
+
+    public Object visit(ConstIntExpr node) {
+	header(AstCache.CONST_INT_EXPR, node);
+	writeString(node.getConstant());
+	return null;
+    }
+
+    public Object visit(ConstBooleanExpr node) {
+	header(AstCache.CONST_BOOLEAN_EXPR, node);
+	writeString(node.getConstant());
+	return null;
+    }
+
+    public Object visit(ConstStringExpr node) {
+	header(AstCache.CONST_STRING_EXPR, node);
+	writeString(node.getConstant());
+	return null;
+    }
+}
@@ -0,0 +1,429 @@
+package parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import util.ErrorHandler;
+
+/**
+ * A hand-built scanner for Bantam Java that works directly on the bytes of a
+ * source file. It recognizes the same tokens as the <tt>TOKEN</tt> and
+ * <tt>SKIP</tt> rules in Parser.jj (and reports the same lexical errors), but
+ * does not allocate while scanning: tokens are written as
+ * (kind, start, end, line, column) ints into a caller-supplied buffer, and
+ * strings are only built on demand (see <tt>text()</tt>) for the tokens that
+ * need an image.
+ *
+ * Keywords are recognized with a perfect hash on (first byte, last byte,
+ * length); an identifier is only compared against the one keyword in its
+ * hash slot.
+ *
+ * As in JavaCharStream, a line break is "\n", "\r" or "\r\n"; unlike
+ * JavaCharStream, unicode escapes (\\uXXXX) are not translated.
+ * */
+public class ByteLexer implements ParserConstants {
+    /** Number of ints used to describe one token */
+    public static final int TOKEN_INTS = 5;
+
+    /** Offsets of the token fields within a token record */
+    public static final int KIND = 0, START = 1, END = 2, LINE = 3, COLUMN = 4;
+
+    /** Keyword spellings and kinds (true/false are BOOLEAN_CONSTs) */
+    private static final String[] KEYWORDS = { "class", "extends", "new",
+	    "while", "for", "if", "else", "return", "instanceof", "break",
+	    "true", "false" };
+    private static final int[] KEYWORD_KINDS = { CLASS, EXTENDS, NEW, WHILE,
+	    FOR, IF, ELSE, RETURN, INSTANCEOF, BREAK, BOOLEAN_CONST,
+	    BOOLEAN_CONST };
+
+    /** Keyword table indexed by keywordHash(), null in empty slots */
+    private static final byte[][] KW_SPELLING = new byte[16][];
+    private static final int[] KW_KIND = new int[16];
+
+    static {
+	for (int i = 0; i < KEYWORDS.length; i++) {
+	    byte[] w = KEYWORDS[i].getBytes();
+	    int h = keywordHash(w[0], w[w.length - 1], w.length);
+	    if (KW_SPELLING[h] != null)
+		throw new Error("keyword hash is not perfect: " + KEYWORDS[i]);
+	    KW_SPELLING[h] = w;
+	    KW_KIND[h] = KEYWORD_KINDS[i];
+	}
+    }
+
+    /** Character classes, indexed by byte value */
+    private static final byte OTHER = 0, SPACE = 1, LETTER = 2, DIGIT = 3;
+    private static final byte[] CLASS_OF = new byte[256];
+
+    static {
+	for (int c = 'a'; c <= 'z'; c++)
+	    CLASS_OF[c] = LETTER;
+	for (int c = 'A'; c <= 'Z'; c++)
+	    CLASS_OF[c] = LETTER;
+	for (int c = '0'; c <= '9'; c++)
+	    CLASS_OF[c] = DIGIT;
+	CLASS_OF[' '] = CLASS_OF['\n'] = CLASS_OF['\t'] = SPACE;
+	CLASS_OF['\f'] = CLASS_OF['\r'] = SPACE;
+    }
+
+    /** Source bytes (absolute positions only, never flipped or consumed) */
+    private ByteBuffer src;
+
+    /** End of the source */
+    private int limit;
+
+    /** Current position, line, and offset of the first byte of the line */
+    private int pos, line = 1, lineStart = 0;
+
+    /** Position just after the last '\r' consumed (the "\n" of a "\r\n"
+     * is not a second line break) */
+    private int afterCR = -1;
+
+    /** Name of the file being scanned, for error messages */
+    private String filename;
+
+    /** Handler for lexical errors */
+    private ErrorHandler errorHandler;
+
+    /**
+     * ByteLexer constructor
+     *
+     * @param src
+     *            source bytes, from position() to limit()
+     * @param filename
+     *            name of the file being scanned
+     * @param errorHandler
+     *            handler for lexical errors
+     * */
+    public ByteLexer(ByteBuffer src, String filename, ErrorHandler errorHandler) {
+	this.src = src;
+	this.pos = src.position();
+	this.lineStart = pos;
+	this.limit = src.limit();
+	this.filename = filename;
+	this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Perfect hash of a keyword
+     * */
+    private static int keywordHash(int first, int last, int length) {
+	return (3 * first + last + length) & 15;
+    }
+
+    /**
+     * Scan tokens into a buffer, TOKEN_INTS ints per token. Stops when the
+     * buffer is full or after writing the EOF token.
+     *
+     * @param buf
+     *            buffer to fill, reused from call to call
+     * @return number of tokens written
+     * */
+    public int fill(int[] buf) {
+	int n = 0;
+	for (int i = 0; i + TOKEN_INTS <= buf.length; i += TOKEN_INTS) {
+	    next(buf, i);
+	    n++;
+	    if (buf[i + KIND] == EOF)
+		break;
+	}
+	return n;
+    }
+
+    /**
+     * Get the source text of a token. Only needed for IDs and constants.
+     *
+     * @param start
+     *            offset of the first byte
+     * @param end
+     *            offset just past the last byte
+     * @return the text of the token
+     * */
+    public String text(int start, int end) {
+	char[] chars = new char[end - start];
+	for (int i = start; i < end; i++) {
+	    byte b = src.get(i);
+	    if (b < 0) {
+		// non-ASCII (only possible in string constants): decode
+		ByteBuffer slice = src.duplicate();
+		slice.limit(end).position(start);
+		return Charset.defaultCharset().decode(slice).toString();
+	    }
+	    chars[i - start] = (char) b;
+	}
+	return new String(chars);
+    }
+
+    /**
+     * Scan the next token into buf[i..i+TOKEN_INTS)
+     * */
+    private void next(int[] buf, int i) {
+	int start, kind;
+
+	for (;;) {
+	    skipSpace();
+	    if (pos >= limit) {
+		put(buf, i, EOF, pos, pos);
+		return;
+	    }
+
+	    start = pos;
+	    int c = src.get(pos) & 0xff;
+	    switch (CLASS_OF[c]) {
+	    case LETTER:
+		pos++;
+		while (pos < limit) {
+		    int d = src.get(pos) & 0xff;
+		    if (CLASS_OF[d] != LETTER && CLASS_OF[d] != DIGIT && d != '_')
+			break;
+		    pos++;
+		}
+		put(buf, i, keyword(start, pos), start, pos);
+		return;
+	    case DIGIT:
+		while (pos < limit && CLASS_OF[src.get(pos) & 0xff] == DIGIT)
+		    pos++;
+		put(buf, i, INT_CONST, start, pos);
+		return;
+	    }
+
+	    if (c == '"') {
+		// a string may contain a '\r', so note where it starts
+		int startLine = line, column = start - lineStart + 1;
+		if (string(start)) {
+		    put(buf, i, STRING_CONST, start, pos);
+		    buf[i + LINE] = startLine;
+		    buf[i + COLUMN] = column;
+		    return;
+		}
+		continue; // bad string constant: reported and skipped
+	    }
+	    if (c == '/' && pos + 1 < limit) {
+		int d = src.get(pos + 1);
+		if (d == '/' && lineComment())
+		    continue;
+		if (d == '*') {
+		    blockComment(start);
+		    continue;
+		}
+	    }
+
+	    kind = operator(c);
+	    put(buf, i, kind, start, pos);
+	    return;
+	}
+    }
+
+    /**
+     * Write a token record (line and column are those of start)
+     * */
+    private void put(int[] buf, int i, int kind, int start, int end) {
+	buf[i + KIND] = kind;
+	buf[i + START] = start;
+	buf[i + END] = end;
+	buf[i + LINE] = line;
+	buf[i + COLUMN] = start - lineStart + 1;
+    }
+
+    /**
+     * Skip whitespace, keeping track of lines
+     * */
+    private void skipSpace() {
+	while (pos < limit) {
+	    int c = src.get(pos) & 0xff;
+	    if (CLASS_OF[c] != SPACE)
+		return;
+	    pos++;
+	    lineBreak(c);
+	}
+    }
+
+    /**
+     * Note that a byte was just consumed, counting it if it breaks a line
+     * */
+    private void lineBreak(int c) {
+	if (c == '\r') {
+	    newLine();
+	    afterCR = pos;
+	} else if (c == '\n') {
+	    if (pos - 1 == afterCR)
+		lineStart = pos; // "\r\n": the line was counted at the '\r'
+	    else
+		newLine();
+	}
+    }
+
+    /**
+     * Note that a line break was just consumed
+     * */
+    private void newLine() {
+	line++;
+	lineStart = pos;
+    }
+
+    /**
+     * Kind of the identifier or keyword in [start, end)
+     * */
+    private int keyword(int start, int end) {
+	int len = end - start;
+	int h = keywordHash(src.get(start), src.get(end - 1), len);
+	byte[] w = KW_SPELLING[h];
+	if (w == null || w.length != len)
+	    return ID;
+	for (int k = 0; k < len; k++)
+	    if (src.get(start + k) != w[k])
+		return ID;
+	return KW_KIND[h];
+    }
+
+    /**
+     * Scan a string constant starting at the opening quote. Errors are
+     * reported as in the SKIP rules of Parser.jj.
+     *
+     * @return true if this is a legal STRING_CONST token
+     * */
+    private boolean string(int start) {
+	int startLine = line;
+	boolean multiLine = false;
+
+	pos++; // opening quote
+	while (pos < limit) {
+	    int c = src.get(pos);
+	    if (c == '"') {
+		pos++;
+		if (multiLine) {
+		    errorHandler.register(errorHandler.LEX_ERROR, filename,
+			    startLine,
+			    "String constant spanning multiple lines: "
+				    + text(start, pos));
+		    return false;
+		}
+		if (pos - start - 2 > Parser.MAX_STRING_SIZE) {
+		    errorHandler.register(errorHandler.LEX_ERROR, filename,
+			    startLine, "String constant is too long: "
+				    + text(start, pos));
+		}
+		return true;
+	    }
+	    pos++;
+	    if (c == '\\' && pos < limit && src.get(pos) == '"') {
+		pos++; // escaped quote
+	    } else {
+		if (c == '\n')
+		    multiLine = true;
+		lineBreak(c);
+	    }
+	}
+	errorHandler.register(errorHandler.LEX_ERROR, filename, startLine,
+		"Unterminated string constant: " + text(start, pos));
+	return false;
+    }
+
+    /**
+     * Skip a // comment starting at the first slash, including its "\n".
+     * As in Parser.jj, a comment must end with a "\n": without one, nothing
+     * is skipped and the slashes are scanned as DIV tokens.
+     *
+     * @return true if the comment was skipped
+     * */
+    private boolean lineComment() {
+	int end = pos + 2;
+	while (end < limit && src.get(end) != '\n')
+	    end++;
+	if (end == limit)
+	    return false;
+	while (pos <= end)
+	    lineBreak(src.get(pos++));
+	return true;
+    }
+
+    /**
+     * Skip a block comment starting at the slash, reporting an error if it
+     * is never closed. As in Parser.jj, the body is read as single bytes
+     * other than '*' and pairs of a '*' and any byte other than '/', so the
+     * comment only ends at a star and slash whose star does not complete a
+     * pair: "/* a **" followed by a slash is not closed. An unclosed comment
+     * extends to the
+     * end of the source, less a final '*' left over from the pairs (which is
+     * then scanned as a MUL token).
+     * */
+    private void blockComment(int start) {
+	int startLine = line;
+	int end; // end of the longest unclosed comment
+
+	pos += 2;
+	end = pos;
+	while (pos < limit) {
+	    int c = src.get(pos++);
+	    if (c == '*') {
+		if (pos == limit)
+		    break;
+		int d = src.get(pos++);
+		if (d == '/')
+		    return;
+		lineBreak(d);
+	    } else {
+		lineBreak(c);
+	    }
+	    end = pos;
+	}
+	pos = end;
+	errorHandler.register(errorHandler.LEX_ERROR, filename, startLine,
+		"Unterminated multi-line comment: " + text(start, pos));
+    }
+
+    /**
+     * Scan a special symbol starting with c (the longest match wins)
+     *
+     * @return the kind of the symbol
+     * */
+    private int operator(int c) {
+	int d = pos + 1 < limit ? src.get(pos + 1) : -1;
+
+	pos++;
+	switch (c) {
+	case ';': return SEMICOLON;
+	case '(': return LEFT_PAREN;
+	case ')': return RIGHT_PAREN;
+	case '{': return LEFT_BRACE;
+	case '}': return RIGHT_BRACE;
+	case '[': return LEFT_BRACKET;
+	case ']': return RIGHT_BRACKET;
+	case '.': return DOT;
+	case ',': return COMMA;
+	case '\\': return BACKSLASH;
+	case '/': return DIV;
+	case '%': return MOD;
+	case '*': return MUL;
+	case '+':
+	    if (d == '+') { pos++; return INC; }
+	    return ADD;
+	case '-':
+	    if (d == '-') { pos++; return DEC; }
+	    return SUB;
+	case '>':
+	    if (d == '=') { pos++; return GTR_EQUAL; }
+	    return GTR;
+	case '<':
+	    if (d == '=') { pos++; return LESS_EQUAL; }
+	    return LESS;
+	case '=':
+	    if (d == '=') { pos++; return IS_EQUAL; }
+	    return ASSIGN;
+	case '!':
+	    if (d == '=') { pos++; return NOT_EQUAL; }
+	    return NOT;
+	case '&':
+	    if (d == '&') { pos++; return AND; }
+	    break;
+	case '|':
+	    if (d == '|') { pos++; return OR; }
+	    break;
+	}
+	pos--;
+	throw new TokenMgrError("Lexical error at line " + line + ", column "
+		+ (pos - lineStart + 1) + ".  Encountered: \""
+		+ TokenMgrError.addEscapes(String.valueOf((char) c)) + "\"",
+		TokenMgrError.LEXICAL_ERROR);
+    }
+}
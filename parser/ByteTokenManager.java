@@ -0,0 +1,97 @@
+package parser;
+
+import java.nio.ByteBuffer;
+
+import util.NamePool;
+
+/**
+ * A token manager that scans with a <tt>ByteLexer</tt> in place of the
+ * generated JavaCC scanner. Tokens are scanned in batches into one reusable
+ * int buffer; a <tt>Token</tt> is only created when the parser asks for it,
+ * and only IDs and constants get an image of their own (keywords and special
+ * symbols share the spellings in <tt>tokenImage</tt>, IDs are interned in the
+ * <tt>NamePool</tt>).
+ * */
+public class ByteTokenManager extends ParserTokenManager {
+    /** Number of tokens scanned per batch */
+    private static final int BATCH = 1024;
+
+    /** Source bytes */
+    private ByteBuffer src;
+
+    /** The scanner, created on first use so that it picks up the filename
+     * and error handler the parser gives this token manager */
+    private ByteLexer lexer = null;
+
+    /** Scanned but not yet returned tokens */
+    private int[] buf = new int[BATCH * ByteLexer.TOKEN_INTS];
+
+    /** Number of tokens in buf, and index of the next one to return */
+    private int count = 0, next = 0;
+
+    /** Shared images of the fixed-spelling tokens, indexed by kind */
+    private static final String[] IMAGES = new String[tokenImage.length];
+
+    static {
+	for (int k = 0; k < tokenImage.length; k++) {
+	    String s = tokenImage[k];
+	    // tokenImage holds quoted spellings, e.g. "\";\"" for SEMICOLON
+	    if (s.length() >= 2 && s.charAt(0) == '"')
+		IMAGES[k] = s.substring(1, s.length() - 1).replace("\\\\", "\\");
+	}
+	IMAGES[EOF] = "";
+    }
+
+    /**
+     * ByteTokenManager constructor
+     *
+     * @param src
+     *            source bytes, from position() to limit()
+     * */
+    public ByteTokenManager(ByteBuffer src) {
+	super(null);
+	this.src = src;
+    }
+
+    /**
+     * Get the next token, scanning another batch when the buffer is used up
+     *
+     * @return the next token
+     * */
+    public Token getNextToken() {
+	if (lexer == null)
+	    lexer = new ByteLexer(src, filename, errorHandler);
+	if (next == count) {
+	    count = lexer.fill(buf);
+	    next = 0;
+	}
+	int i = next++ * ByteLexer.TOKEN_INTS;
+	int kind = buf[i + ByteLexer.KIND];
+
+	Token t = new Token();
+	t.kind = kind;
+	t.beginLine = t.endLine = buf[i + ByteLexer.LINE];
+	t.beginColumn = buf[i + ByteLexer.COLUMN];
+	switch (kind) {
+	case ID:
+	    t.image = NamePool.intern(lexer.text(buf[i + ByteLexer.START],
+		    buf[i + ByteLexer.END]));
+	    break;
+	case INT_CONST:
+	case STRING_CONST:
+	    t.image = lexer.text(buf[i + ByteLexer.START],
+		    buf[i + ByteLexer.END]);
+	    break;
+	case BOOLEAN_CONST:
+	    // "true" and "false" differ in length
+	    t.image = buf[i + ByteLexer.END] - buf[i + ByteLexer.START] == 4 ? "true"
+		    : "false";
+	    break;
+	default:
+	    t.image = IMAGES[kind];
+	}
+	t.endColumn = t.beginColumn + Math.max(0,
+		buf[i + ByteLexer.END] - buf[i + ByteLexer.START] - 1);
+	return t;
+    }
+}
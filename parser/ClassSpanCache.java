@@ -0,0 +1,205 @@
+package parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ast.Class_;
+import util.DeferredErrorHandler;
+
+/**
+ * The top-level class declarations of one source file, kept between parses
+ * for incremental reparsing. Each parse splits the file into class spans
+ * (from the <tt>class</tt> keyword to its matching closing brace), hashes
+ * each span, and reuses the class built last time for a span with the
+ * same contents. Only the other spans are reparsed.
+ *
+ * Each class is also kept encoded (see AstWriter) with its line numbers
+ * relative to the first line of its span. A span that starts on the same
+ * line as before gets the very same <tt>Class_</tt> back; one that moved
+ * (because an edit above it added or removed lines) gets a copy decoded
+ * with its line numbers rebased to the new start, which costs time in the
+ * size of the class rather than of the file.
+ * */
+public class ClassSpanCache {
+    /** A class declaration in the source */
+    private static class Span {
+	int start, end, line, column;
+	long hash;
+	Class_ node;
+	byte[] tree; // node, with lines relative to line
+    }
+
+    /** Spans found by the last split(), in source order */
+    private ArrayList<Span> spans = new ArrayList<Span>();
+
+    /** Error-free classes from earlier parses, by span hash */
+    private HashMap<Long, Span> parsed = new HashMap<Long, Span>();
+
+    /**
+     * Find the class spans of a source file. Fails (and the file must be
+     * parsed as a whole) if anything but classes, whitespace and comments
+     * appears at the top level, if the file does not scan cleanly, or if it
+     * uses unicode escapes, which ByteLexer does not translate.
+     *
+     * @param src
+     *            contents of the file
+     * @return true if the file was split into one or more class spans
+     * */
+    public boolean split(byte[] src) {
+	spans.clear();
+	for (int i = 0; i + 1 < src.length; i++)
+	    if (src[i] == '\\' && src[i + 1] == 'u')
+		return false;
+
+	DeferredErrorHandler errors = new DeferredErrorHandler();
+	ByteLexer lexer = new ByteLexer(ByteBuffer.wrap(src), null, errors);
+	int[] buf = new int[1024 * ByteLexer.TOKEN_INTS];
+	int depth = 0;
+	Span span = null;
+	try {
+	    for (;;) {
+		int n = lexer.fill(buf);
+		for (int i = 0; i < n * ByteLexer.TOKEN_INTS; i += ByteLexer.TOKEN_INTS) {
+		    int kind = buf[i + ByteLexer.KIND];
+		    if (kind == ParserConstants.EOF)
+			return depth == 0 && span == null && !spans.isEmpty()
+				&& errors.size() == 0;
+		    if (depth == 0 && span == null) {
+			if (kind != ParserConstants.CLASS)
+			    return false;
+			span = new Span();
+			span.start = buf[i + ByteLexer.START];
+			span.line = buf[i + ByteLexer.LINE];
+			span.column = buf[i + ByteLexer.COLUMN];
+		    } else if (kind == ParserConstants.LEFT_BRACE) {
+			depth++;
+		    } else if (kind == ParserConstants.RIGHT_BRACE) {
+			if (--depth < 0)
+			    return false;
+			if (depth == 0) {
+			    span.end = buf[i + ByteLexer.END];
+			    span.hash = hash(src, span.start, span.end);
+			    spans.add(span);
+			    span = null;
+			}
+		    }
+		}
+	    }
+	} catch (TokenMgrError e) {
+	    return false;
+	}
+    }
+
+    /**
+     * 64-bit FNV-1a hash of src[start..end)
+     * */
+    static long hash(byte[] src, int start, int end) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = start; i < end; i++) {
+	    h ^= src[i] & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+
+    /**
+     * Get the number of class spans found by split()
+     *
+     * @return the number of spans
+     * */
+    public int size() {
+	return spans.size();
+    }
+
+    /**
+     * Get the source text of a span
+     *
+     * @param src
+     *            contents of the file
+     * @param k
+     *            index of the span
+     * @return the text, decoded like the stream input of the parser
+     * */
+    public String text(byte[] src, int k) {
+	Span span = spans.get(k);
+	return new String(src, span.start, span.end - span.start,
+		Charset.defaultCharset());
+    }
+
+    /**
+     * Get the line a span starts on
+     *
+     * @param k
+     *            index of the span
+     * @return the line of its <tt>class</tt> keyword
+     * */
+    public int line(int k) {
+	return spans.get(k).line;
+    }
+
+    /**
+     * Get the column a span starts at
+     *
+     * @param k
+     *            index of the span
+     * @return the column of its <tt>class</tt> keyword
+     * */
+    public int column(int k) {
+	return spans.get(k).column;
+    }
+
+    /**
+     * Get the class parsed earlier from a span with the same contents, at
+     * the span's lines
+     *
+     * @param k
+     *            index of the span
+     * @return the earlier class (rebased if the span moved), or null if the
+     *         span must be reparsed
+     * */
+    public Class_ reuse(int k) {
+	Span span = spans.get(k);
+	Span old = parsed.get(span.hash);
+	if (old == null || old.end - old.start != span.end - span.start)
+	    return null;
+	span.tree = old.tree;
+	span.node = old.line == span.line ? old.node : new AstReader(old.tree,
+		0, span.line).readClass();
+	return span.node;
+    }
+
+    /**
+     * Record the class parsed (without errors) from a span
+     *
+     * @param k
+     *            index of the span
+     * @param node
+     *            the parsed class
+     * */
+    public void store(int k, Class_ node) {
+	Span span = spans.get(k);
+	span.node = node;
+	span.tree = new AstWriter().write(node, span.line);
+    }
+
+    /**
+     * Make the classes recorded during this parse the ones reused by the
+     * next. Classes of spans that no longer exist are dropped.
+     * */
+    public void finish() {
+	parsed.clear();
+	for (Span span : spans)
+	    if (span.node != null)
+		parsed.put(span.hash, span);
+    }
+
+    /**
+     * Forget every class (after the file had to be parsed as a whole)
+     * */
+    public void clear() {
+	spans.clear();
+	parsed.clear();
+    }
+}
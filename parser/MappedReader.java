@@ -0,0 +1,100 @@
+package parser;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A <tt>Reader</tt> over a memory-mapped source file. The file is mapped
+ * read-only with <tt>FileChannel.map</tt> and its descriptor is closed right
+ * away, so the scanner reads characters straight out of the mapping instead of
+ * going through <tt>read()</tt> calls, a <tt>BufferedInputStream</tt> and an
+ * <tt>InputStreamReader</tt>.
+ * 
+ * Bantam source is almost always plain ASCII, which is copied out of the
+ * mapping one byte per character. If a non-ASCII byte shows up (e.g., inside
+ * a string constant) the rest of the file is decoded once with the platform
+ * charset, matching what the stream path would have produced.
+ * */
+public class MappedReader extends Reader {
+    /** Mapped contents of the source file */
+    private MappedByteBuffer buf;
+
+    /** Decoded remainder of the file once a non-ASCII byte was seen */
+    private CharBuffer decoded = null;
+
+    /**
+     * MappedReader constructor
+     * 
+     * @param filename
+     *            name of the source file to map
+     * @throws IOException
+     *             if the file cannot be opened or mapped
+     * */
+    public MappedReader(String filename) throws IOException {
+	buf = map(filename);
+    }
+
+    /**
+     * Map a file read-only, closing its descriptor once it is mapped
+     * 
+     * @param filename
+     *            name of the file to map
+     * @return the mapped contents of the file
+     * @throws IOException
+     *             if the file cannot be opened or mapped
+     * */
+    public static MappedByteBuffer map(String filename) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(filename, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	} finally {
+	    // the mapping stays valid after the channel is closed
+	    raf.close();
+	}
+    }
+
+    public int read(char[] cbuf, int off, int len) {
+	if (len == 0)
+	    return 0;
+	if (decoded != null)
+	    return readDecoded(cbuf, off, len);
+	if (!buf.hasRemaining())
+	    return -1;
+
+	int n = 0;
+	while (n < len && buf.hasRemaining()) {
+	    byte b = buf.get(buf.position());
+	    if (b < 0) {
+		// non-ASCII: decode everything that is left in one go
+		decoded = Charset.defaultCharset().decode(buf);
+		return n > 0 ? n : readDecoded(cbuf, off, len);
+	    }
+	    buf.position(buf.position() + 1);
+	    cbuf[off + n++] = (char) b;
+	}
+	return n;
+    }
+
+    /**
+     * Read from the decoded remainder of the file
+     * 
+     * @return number of characters read, or -1 at end of file
+     * */
+    private int readDecoded(char[] cbuf, int off, int len) {
+	if (!decoded.hasRemaining())
+	    return -1;
+	len = Math.min(len, decoded.remaining());
+	decoded.get(cbuf, off, len);
+	return len;
+    }
+
+    public void close() {
+	// nothing to release: the channel was closed after mapping and the
+	// mapping itself is unmapped when it is garbage collected
+	decoded = null;
+    }
+}
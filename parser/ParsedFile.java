@@ -0,0 +1,51 @@
+package parser;
+
+import ast.Program;
+import util.DeferredErrorHandler;
+
+/**
+ * The result of parsing one source file (or one chunk of one), handed back
+ * to the driving Parser, which merges the results in command-line order.
+ * Parsers, their token managers and their character buffers are only kept
+ * while a file is being parsed; results that did not come from a single
+ * parser (cached, reparsed or split files) are built directly.
+ * */
+class ParsedFile {
+    /** The program, or null after a parse error */
+    final Program program;
+
+    /** Errors found in the file */
+    final DeferredErrorHandler errors;
+
+    /** Did the input end inside a comment or string constant? */
+    final boolean unterminated;
+
+    /**
+     * ParsedFile constructor
+     *
+     * @param program
+     *            the program, or null after a parse error
+     * @param errors
+     *            errors found in the file
+     * */
+    ParsedFile(Program program, DeferredErrorHandler errors) {
+	this(program, errors, false);
+    }
+
+    /**
+     * ParsedFile constructor
+     *
+     * @param program
+     *            the program, or null after a parse error
+     * @param errors
+     *            errors found in the file
+     * @param unterminated
+     *            did the input end inside a comment or string constant?
+     * */
+    ParsedFile(Program program, DeferredErrorHandler errors,
+	    boolean unterminated) {
+	this.program = program;
+	this.errors = errors;
+	this.unterminated = unterminated;
+    }
+}
@@ -0,0 +1,200 @@
+package parser;
+
+import java.io.*;
+
+/**
+ * Parser throughput benchmark. Generates a statement-heavy Bantam program
+ * (declarations, assignments, array element assignments, dispatches, casts
+ * and nested expressions, which are the inputs that used to need syntactic
+ * lookahead) and parses it repeatedly, reporting source bytes and statements
+ * parsed per second.
+ *
+ * Without an input mode, the program is first parsed from a stream by
+ * BaselineParser, the grammar as it was before it was left-factored to
+ * LL(1), and then by Parser in each input mode in turn (stream,
+ * memory-mapped, byte scanner). The stream path is reported relative to the
+ * baseline, and the other input modes relative to the stream path.
+ *
+ * Usage: java parser.ParserBenchmark [statements [runs [input mode]]]
+ * where input mode is one of the Parser.*_INPUT constants.
+ * */
+public class ParserBenchmark {
+    /** Number of statements generated per method */
+    private static final int STMTS_PER_METHOD = 100;
+
+    /** Number of untimed warm-up runs */
+    private static final int WARMUP = 5;
+
+    /** Names of the input modes, indexed by Parser.*_INPUT */
+    private static final String[] MODES = { "stream", "mapped", "byte" };
+
+    public static void main(String[] args) throws IOException {
+	int stmts = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+	int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+	File src = File.createTempFile("bench", ".btm");
+	src.deleteOnExit();
+	generate(src, stmts);
+	String[] filenames = { src.getPath() };
+	System.out.printf("%d statements, %d bytes, best of %d runs%n", stmts,
+		src.length(), runs);
+
+	if (args.length > 2) {
+	    int input = Integer.parseInt(args[2]);
+	    report(MODES[input], time(filenames, input, runs), 0, null, src
+		    .length(), stmts);
+	    return;
+	}
+	long baseline = timeBaseline(src.getPath(), runs);
+	report("baseline", baseline, 0, null, src.length(), stmts);
+	long stream = time(filenames, Parser.STREAM_INPUT, runs);
+	report(MODES[Parser.STREAM_INPUT], stream, baseline, "baseline", src
+		.length(), stmts);
+	for (int input = Parser.MAPPED_INPUT; input < MODES.length; input++)
+	    report(MODES[input], time(filenames, input, runs), stream,
+		    MODES[Parser.STREAM_INPUT], src.length(), stmts);
+    }
+
+    /**
+     * Time parsing a program
+     *
+     * @param filenames
+     *            source files of the program
+     * @param input
+     *            input mode
+     * @param runs
+     *            number of timed runs
+     * @return the time of the fastest run, in nanoseconds
+     * */
+    private static long time(String[] filenames, int input, int runs) {
+	for (int i = 0; i < WARMUP; i++)
+	    new Parser(filenames, false, input).parse();
+
+	long best = Long.MAX_VALUE;
+	for (int i = 0; i < runs; i++) {
+	    long start = System.nanoTime();
+	    new Parser(filenames, false, input).parse();
+	    best = Math.min(best, System.nanoTime() - start);
+	}
+	return best;
+    }
+
+    /**
+     * Time parsing a program from a stream with BaselineParser
+     *
+     * @param filename
+     *            source file of the program
+     * @param runs
+     *            number of timed runs
+     * @return the time of the fastest run, in nanoseconds
+     * */
+    private static long timeBaseline(String filename, int runs)
+	    throws IOException {
+	for (int i = 0; i < WARMUP; i++)
+	    parseBaseline(filename);
+
+	long best = Long.MAX_VALUE;
+	for (int i = 0; i < runs; i++) {
+	    long start = System.nanoTime();
+	    parseBaseline(filename);
+	    best = Math.min(best, System.nanoTime() - start);
+	}
+	return best;
+    }
+
+    /**
+     * Parse a source file with BaselineParser, reading it the way Parser's
+     * stream input does
+     *
+     * @param filename
+     *            source file
+     * */
+    private static void parseBaseline(String filename) throws IOException {
+	Reader reader = new InputStreamReader(new FileInputStream(filename));
+	try {
+	    new BaselineParser(reader, filename).Program();
+	} catch (ParseException e) {
+	    throw new RuntimeException("baseline grammar rejected " + filename,
+		    e);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    /**
+     * Print the throughput of one configuration
+     *
+     * @param name
+     *            name of the configuration
+     * @param best
+     *            time of its fastest run, in nanoseconds
+     * @param base
+     *            time of the configuration it is compared with, or 0
+     * @param baseName
+     *            name of the configuration it is compared with
+     * */
+    private static void report(String name, long best, long base,
+	    String baseName, long bytes, int stmts) {
+	double secs = best / 1e9;
+	System.out.printf("%-8s %8.1f ms %8.1f MB/s %10.0f statements/s", name,
+		best / 1e6, bytes / secs / (1 << 20), stmts / secs);
+	if (base > 0)
+	    System.out.printf("  (%.2fx %s)", (double) base / best, baseName);
+	System.out.println();
+    }
+
+    /**
+     * Write a program with the given number of statements to a file
+     *
+     * @param file
+     *            file to write
+     * @param stmts
+     *            number of statements
+     * */
+    public static void generate(File file, int stmts) throws IOException {
+	PrintWriter out = new PrintWriter(new BufferedWriter(
+		new FileWriter(file)));
+	out.println("class Main {");
+	out.println("    int[] a = new int[10];");
+	out.println("    Main next = null;");
+	out.println("    void main() { }");
+	for (int m = 0; m * STMTS_PER_METHOD < stmts; m++) {
+	    out.println("    int m" + m + "(int x, Main other) {");
+	    out.println("        int y = x;");
+	    for (int s = 1; s < STMTS_PER_METHOD; s++) {
+		switch (s % 8) {
+		case 0:
+		    out.println("        int v" + s + " = (x + " + s
+			    + ") * y - a[x % 10];");
+		    break;
+		case 1:
+		    out.println("        y = y + m" + m + "(x - 1, other);");
+		    break;
+		case 2:
+		    out.println("        a[y % 10] = x * " + s + ";");
+		    break;
+		case 3:
+		    out.println("        Object o" + s + " = (Object)(other);");
+		    break;
+		case 4:
+		    out.println("        other.next.m" + m + "(y, this);");
+		    break;
+		case 5:
+		    out.println("        if (x < y && !(y == " + s
+			    + ")) y++; else y = -x;");
+		    break;
+		case 6:
+		    out.println("        while (x > 0) x = x - 1;");
+		    break;
+		default:
+		    out.println("        Main[] arr" + s + " = new Main[" + s
+			    + "];");
+		}
+	    }
+	    out.println("        return y;");
+	    out.println("    }");
+	}
+	out.println("}");
+	out.close();
+    }
+}
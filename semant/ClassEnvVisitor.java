@@ -1,18 +1,33 @@
 package semant;
 
+import util.ClassLayout;
 import util.ClassTreeNode;
 import util.ErrorHandler;
 import util.SymbolTable;
+import util.Type;
+import util.TypeRegistry;
 import visitor.Visitor;
 import ast.*;
 
 import java.util.*;
 
+/**
+ * Builds the environment of a class: checks the declarations of its fields
+ * and methods and enters them in its method symbol table and ClassLayout.
+ * Only member declarations are visited; field initializers and method
+ * bodies are left to TypeCheckVisitor, so each of them is walked once.
+ * Classes are visited one at a time (see SemanticAnalyzer), each after its
+ * parent, whose layout its own starts from.
+ */
 public class ClassEnvVisitor extends Visitor {
     String fname;
     Hashtable<String, ClassTreeNode> map;
-    HashSet<String> prim, rsv;
-    SymbolTable vst, mst, tst;
+    ClassIndex classes;
+    TypeRegistry types;
+    HashSet<String> rsv;
+    SymbolTable mst, tst;
+    Type ctype;
+    ClassLayout layout; // fields and methods, inherited ones included
     ErrorHandler err;
 
     boolean debug = true;
@@ -25,31 +40,21 @@ public class ClassEnvVisitor extends Visitor {
      * 
      * @param map
      *            are we lost?
+     * @param types
+     *            every type of the program
      * @param err
      *            ...maybe.
      */
     public ClassEnvVisitor(Hashtable<String, ClassTreeNode> map,
-        ErrorHandler err, HashSet<String> prim, HashSet<String> rsv) {
+        ClassIndex classes, TypeRegistry types, ErrorHandler err,
+        HashSet<String> rsv) {
         this.map = map;
+        this.classes = classes;
+        this.types = types;
         this.err = err;
-        this.prim = prim;
         this.rsv = rsv;
     }
 
-    /**
-     * Visit a list node of classes
-     * 
-     * @param node
-     *            the class list node
-     * @return result of the visit
-     * */
-    public Object visit(ClassList node) {
-        for (ClassTreeNode ctn : map.values()) {
-            ctn.getASTNode().accept(this);
-        }
-        return null;
-    }
-
     /**
      * Visit a class node
      * 
@@ -63,8 +68,9 @@ public class ClassEnvVisitor extends Visitor {
 
         
 
-        vst = map.get(name).getVarSymbolTable();
-        mst = map.get(name).getMethodSymbolTable();
+        mst = classes.get(name).getMethodSymbolTable();
+        ctype = types.get(name);
+        layout = new ClassLayout(ctype, types);
 
         
 
@@ -97,33 +103,21 @@ public class ClassEnvVisitor extends Visitor {
      * */
     public Object visit(Field node) {
         int ln = node.getLineNum();
-        String name = node.getName(), type = node.getType();
-        boolean arr = false;
-
-        
-
-        if (type.contains("[]")) {
-            arr = true;
-            type = type.substring(0, type.length() - 2);
+        String name = node.getName();
+        Type type = types.get(node.getType());
+        int slot = layout.getFieldSlot(name);
 
-            
-        }
         if (rsv.contains(name)) { // this, super, null
             err.register(err.SEMANT_ERROR, fname,
                 ln, "fields cannot be named '" + name + "'");
-        } else if (vst.peek(name) != null) {
+        } else if (slot >= 0 && layout.getFieldOwner(slot) == ctype) {
             err.register(err.SEMANT_ERROR, fname, ln, "duplicate");
-        } else if (!(prim.contains(type) || map.containsKey(type))) {
+        } else if (type == null || type == Type.VOID || type == Type.NULL) {
             err.register(err.SEMANT_ERROR, fname, ln, "undefined");
-        } else { // add to var st
-            type += arr ? "[]" : ""; // add braces back for array fields
-            vst.add(name, type);
-            vst.add("this." + name, type);
+        } else { // add to the class's fields
+            layout.addField(name, type);
 
             
-        }
-        if (node.getInit() != null) {
-            node.getInit().accept(this);
         }
         return null;
     }
@@ -137,35 +131,24 @@ public class ClassEnvVisitor extends Visitor {
      * */
     public Object visit(Method node) {
         int ln = node.getLineNum();
-        String name = node.getName(), type = node.getReturnType();
-        boolean arr = false, overload = false;
-        Method doppelganger = (Method) mst.lookup(name);
-        String ntype, dtype; // node & doppelganger formal types
+        String name = node.getName();
+        Type type = types.get(node.getReturnType());
+        boolean overload = false;
+        Method doppelganger = layout.getMethod(name);
+        Type ntype, dtype; // node & doppelganger formal types
         Iterator<ASTNode> itn, itd; //node & doppelganger iterators
 
-        
-
-        if (type.contains("[]")) {
-            arr = true;
-            type = type.substring(0, type.length() - 2);
-
-            
-        }
-
         if (rsv.contains(name)) {
             err.register(err.SEMANT_ERROR, fname, 
                 ln, "methods cannot be named '" + name + "'");
         } else if (mst.peek(name) != null) {
             err.register(err.SEMANT_ERROR, fname, ln, "duplicate");
-        } else if (!(prim.contains(type) || map.containsKey(type)
-            || type.equals("void"))) {
+        } else if (type == null || type == Type.NULL) {
          err.register(err.SEMANT_ERROR, fname, ln, "method: " + name
-                + " invalid type: " + type);
+                + " invalid type: " + node.getReturnType());
         } else {
-            type += arr ? "[]" : ""; 
-
   if (doppelganger != null) { // if method name is inherited
-     if (!type.equals(doppelganger.getReturnType())) {
+     if (type != types.get(doppelganger.getReturnType())) {
             overload = true;
             err.register(err.SEMANT_ERROR, fname, ln, "method: "
                 + name + " ret type: " + type);
@@ -179,10 +162,10 @@ public class ClassEnvVisitor extends Visitor {
         itd = doppelganger.getFormalList().getIterator();
                     
         for (int f = 1; itn.hasNext(); f++) {
-          ntype = ((Formal) itn.next()).getType();
-          dtype = ((Formal) itd.next()).getType();
+          ntype = types.get(((Formal) itn.next()).getType());
+          dtype = types.get(((Formal) itd.next()).getType());
 
-          if (!ntype.equals(dtype)) {
+          if (ntype != dtype) {
             overload = true;
             err.register(err.SEMANT_ERROR, fname, ln, "method: "
               + name + " formal/doppleganger type mismatch.");
@@ -201,532 +184,9 @@ public class ClassEnvVisitor extends Visitor {
                 
 
                 mst.add(name, node);
+                layout.addMethod(name, node);
             }
         }
-        node.getFormalList().accept(this);
-        node.getStmtList().accept(this);
-        return null;
-    }
-
-    /**
-     * Visit a list node of formals
-     * 
-     * @param node
-     *            the formal list node
-     * @return result of the visit
-     * */
-    public Object visit(FormalList node) {
-        for (Iterator it = node.getIterator(); it.hasNext();){
-            ((Formal) it.next()).accept(this);
-        }
         return null;
     }
-
-    /**
-     * Visit a formal node
-     * 
-     * @param node
-     *            the formal node
-     * @return result of the visit
-     * */
-    public Object visit(Formal node) {
-        return null;
-    }
-
-    /**
-     * Visit a list node of statements
-     * 
-     * @param node
-     *            the statement list node
-     * @return result of the visit
-     * */
-    public Object visit(StmtList node) {
-        for (Iterator it = node.getIterator(); it.hasNext();)
-            ((Stmt) it.next()).accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a declaration statement node
-     * 
-     * @param node
-     *            the declaration statement node
-     * @return result of the visit
-     * */
-    public Object visit(DeclStmt node) {
-    node.getInit().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an expression statement node
-     * 
-     * @param node
-     *            the expression statement node
-     * @return result of the visit
-     * */
-    public Object visit(ExprStmt node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an if statement node
-     * 
-     * @param node
-     *            the if statement node
-     * @return result of the visit
-     * */
-    public Object visit(IfStmt node) {
-    
-    node.getPredExpr().accept(this);
-    
-    node.getThenStmt().accept(this);
-    
-    node.getElseStmt().accept(this);
-    
-    return null;
-    }
-
-    /**
-     * Visit a while statement node
-     * 
-     * @param node
-     *            the while statement node
-     * @return result of the visit
-     * */
-    public Object visit(WhileStmt node) {
-    node.getPredExpr().accept(this);
-    node.getBodyStmt().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a for statement node
-     * 
-     * @param node
-     *            the for statement node
-     * @return result of the visit
-     * */
-    public Object visit(ForStmt node) {
-    if (node.getInitExpr() != null)
-        node.getInitExpr().accept(this);
-    if (node.getPredExpr() != null)
-        node.getPredExpr().accept(this);
-    if (node.getUpdateExpr() != null)
-        node.getUpdateExpr().accept(this);
-    node.getBodyStmt().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a break statement node
-     * 
-     * @param node
-     *            the break statement node
-     * @return result of the visit
-     * */
-    public Object visit(BreakStmt node) {
-    return null;
-    }
-
-    /**
-     * Visit a block statement node
-     * 
-     * @param node
-     *            the block statement node
-     * @return result of the visit
-     * */
-    public Object visit(BlockStmt node) {
-    node.getStmtList().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a return statement node
-     * 
-     * @param node
-     *            the return statement node
-     * @return result of the visit
-     * */
-    public Object visit(ReturnStmt node) {
-    if (node.getExpr() != null)
-        node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a list node of expressions
-     * 
-     * @param node
-     *            the expression list node
-     * @return result of the visit
-     * */
-    public Object visit(ExprList node) {
-    for (Iterator it = node.getIterator(); it.hasNext();)
-        ((Expr) it.next()).accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a dispatch expression node
-     * 
-     * @param node
-     *            the dispatch expression node
-     * @return result of the visit
-     * */
-    public Object visit(DispatchExpr node) {
-    node.getRefExpr().accept(this);
-    node.getActualList().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a new expression node
-     * 
-     * @param node
-     *            the new expression node
-     * @return result of the visit
-     * */
-    public Object visit(NewExpr node) {
-    return null;
-    }
-
-    /**
-     * Visit a new array expression node
-     * 
-     * @param node
-     *            the new array expression node
-     * @return result of the visit
-     * */
-    public Object visit(NewArrayExpr node) {
-    node.getSize().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an instanceof expression node
-     * 
-     * @param node
-     *            the instanceof expression node
-     * @return result of the visit
-     * */
-    public Object visit(InstanceofExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a cast expression node
-     * 
-     * @param node
-     *            the cast expression node
-     * @return result of the visit
-     * */
-    public Object visit(CastExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an assignment expression node
-     * 
-     * @param node
-     *            the assignment expression node
-     * @return result of the visit
-     * */
-    public Object visit(AssignExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an array assignment expression node
-     * 
-     * @param node
-     *            the array assignment expression node
-     * @return result of the visit
-     * */
-    public Object visit(ArrayAssignExpr node) {
-    node.getIndex().accept(this);
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison equals expression node
-     * 
-     * @param node
-     *            the binary comparison equals expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompEqExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison not equals expression node
-     * 
-     * @param node
-     *            the binary comparison not equals expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompNeExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison less than expression node
-     * 
-     * @param node
-     *            the binary comparison less than expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompLtExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison less than or equal to expression node
-     * 
-     * @param node
-     *     the binary comparison less than or equal to expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompLeqExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison greater than expression node
-     * 
-     * @param node
-     *            the binary comparison greater than expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompGtExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary comparison greater than or equal to expression node
-     * 
-     * @param node
-     *    the binary comparison greater to or equal to expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryCompGeqExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary arithmetic plus expression node
-     * 
-     * @param node
-     *            the binary arithmetic plus expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryArithPlusExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary arithmetic minus expression node
-     * 
-     * @param node
-     *            the binary arithmetic minus expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryArithMinusExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary arithmetic times expression node
-     * 
-     * @param node
-     *            the binary arithmetic times expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryArithTimesExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary arithmetic divide expression node
-     * 
-     * @param node
-     *            the binary arithmetic divide expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryArithDivideExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary arithmetic modulus expression node
-     * 
-     * @param node
-     *            the binary arithmetic modulus expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryArithModulusExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary logical AND expression node
-     * 
-     * @param node
-     *            the binary logical AND expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryLogicAndExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a binary logical OR expression node
-     * 
-     * @param node
-     *            the binary logical OR expression node
-     * @return result of the visit
-     * */
-    public Object visit(BinaryLogicOrExpr node) {
-    node.getLeftExpr().accept(this);
-    node.getRightExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a unary negation expression node
-     * 
-     * @param node
-     *            the unary negation expression node
-     * @return result of the visit
-     * */
-    public Object visit(UnaryNegExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a unary NOT expression node
-     * 
-     * @param node
-     *            the unary NOT expression node
-     * @return result of the visit
-     * */
-    public Object visit(UnaryNotExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a unary increment expression node
-     * 
-     * @param node
-     *            the unary increment expression node
-     * @return result of the visit
-     * */
-    public Object visit(UnaryIncrExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a unary decrement expression node
-     * 
-     * @param node
-     *            the unary decrement expression node
-     * @return result of the visit
-     * */
-    public Object visit(UnaryDecrExpr node) {
-    node.getExpr().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit a variable expression node
-     * 
-     * @param node
-     *            the variable expression node
-     * @return result of the visit
-     * */
-    public Object visit(VarExpr node) {
-    if (node.getRef() != null)
-        node.getRef().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an array expression node
-     * 
-     * @param node
-     *            the array expression node
-     * @return result of the visit
-     * */
-    public Object visit(ArrayExpr node) {
-    if (node.getRef() != null)
-        node.getRef().accept(this);
-    node.getIndex().accept(this);
-    return null;
-    }
-
-    /**
-     * Visit an int constant expression node
-     * 
-     * @param node
-     *            the int constant expression node
-     * @return result of the visit
-     * */
-    public Object visit(ConstIntExpr node) {
-    return null;
-    }
-
-    /**
-     * Visit a boolean constant expression node
-     * 
-     * @param node
-     *            the boolean constant expression node
-     * @return result of the visit
-     * */
-    public Object visit(ConstBooleanExpr node) {
-    return null;
-    }
-
-    /**
-     * Visit a string constant expression node
-     * 
-     * @param node
-     *            the string constant expression node
-     * @return result of the visit
-     * */
-    public Object visit(ConstStringExpr node) {
-    return null;
-    }
 }
@@ -6,11 +6,20 @@ import ast.*;
 import java.util.*;
 
 public class ClassHeirarchyVisitor extends Visitor {
+	/** Marks of classes finished by the cycle check and of classes
+	 * reached from Object (see link()) */
+	private static final int DONE = -1, REACHED = -2;
+
 	String fname;
-	boolean mxbxPwnz;
 	Hashtable<String, ClassTreeNode> map;
 	HashSet<String> prim, rsv;
 	ErrorHandler err;
+
+	/** User-defined classes, in the order they were added */
+	ArrayList<ClassTreeNode> added = new ArrayList<ClassTreeNode>();
+
+	/** Every class, parents before children, as found by link() */
+	Vector<ClassTreeNode> ordered = new Vector<ClassTreeNode>();
 	/**
 	 * ClassEnvVisitor constructor constructs a ClassEnvVisitor which may later
 	 * visit the abstraction which represents the class environment to be
@@ -38,22 +47,168 @@ public class ClassHeirarchyVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ClassList node) {
-		// add CTN's to map
-		mxbxPwnz = false; // IT'S NOT TRUE?!?
 		for (Iterator<ASTNode> it = node.getIterator(); it.hasNext();){
-			((Class_) it.next()).accept(this);
+			addClass((Class_) it.next());
 		}
-		// then verify and set inheritence
-		mxbxPwnz = true; // YES IT IS!!!
-		for (ClassTreeNode ctn : map.values()) {
+		link();
+		return null;
+	}
+
+	/**
+	 * Add a class tree node for a class (checking that its name is unused),
+	 * without linking it to its parent yet
+	 * 
+	 * @param node
+	 *            the class node
+	 * */
+	public void addClass(Class_ node) {
+		node.accept(this);
+	}
+
+	/**
+	 * Once every class has been added, verify and set inheritance. Each
+	 * class's parent is looked up once, and cycles are found by a single
+	 * depth-first walk up the parent links that marks every class it
+	 * passes, so the whole check is linear in the number of classes.
+	 * Classes are handled in a fixed order (built-in classes by name, then
+	 * the others in the order they were added), so errors and the order of
+	 * each class's children do not depend on the class map.
+	 * */
+	public void link() {
+		ClassTreeNode root = map.get("Object");
+		ArrayList<ClassTreeNode> all = new ArrayList<ClassTreeNode>();
+		for (ClassTreeNode ctn : map.values())
+			if (ctn.isBuiltIn())
+				all.add(ctn);
+		Collections.sort(all, new Comparator<ClassTreeNode>() {
+			public int compare(ClassTreeNode a, ClassTreeNode b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		all.addAll(added);
+
+		// the valid parent of each class (null for Object and after errors)
+		IdentityHashMap<ClassTreeNode, ClassTreeNode> parents =
+			new IdentityHashMap<ClassTreeNode, ClassTreeNode>();
+		for (ClassTreeNode ctn : all) {
 			prim.add(ctn.getName());
-			ctn.getASTNode().accept(this);
+			parents.put(ctn, parent(ctn, root));
+		}
+
+		// a class is on the current path (gray: its index in the path) or
+		// finished (black: DONE); reaching a gray class closes a cycle
+		IdentityHashMap<ClassTreeNode, Integer> mark =
+			new IdentityHashMap<ClassTreeNode, Integer>();
+		ArrayList<ClassTreeNode> path = new ArrayList<ClassTreeNode>();
+		for (ClassTreeNode ctn : all) {
+			path.clear();
+			ClassTreeNode tmp = ctn;
+			while (tmp != null && !mark.containsKey(tmp)) {
+				mark.put(tmp, path.size());
+				path.add(tmp);
+				tmp = parents.get(tmp);
+			}
+			if (tmp != null && mark.get(tmp).intValue() != DONE) {
+				for (int i = mark.get(tmp); i < path.size(); i++) {
+					ClassTreeNode c = path.get(i);
+					err.register(err.SEMANT_ERROR, c.getASTNode().getFilename(),
+						c.getASTNode().getLineNum(),
+						"Oops! You suck at extenz: Cycle detected involving "
+						+ c.getName());
+					parents.put(c, null);
+				}
+			}
+			for (ClassTreeNode c : path)
+				mark.put(c, DONE);
+		}
+
+		for (ClassTreeNode ctn : all) {
+			if (parents.get(ctn) != null)
+				ctn.setParent(parents.get(ctn));
+			//valid class, enter scope
+			ctn.getVarSymbolTable().enterScope();
+			ctn.getMethodSymbolTable().enterScope();
+		}
+
+		// breadth first from Object
+		ordered.clear();
+		ordered.add(root);
+		for (int i = 0; i < ordered.size(); i++) {
+			for (Iterator<ClassTreeNode> it = ordered.get(i)
+				.getChildrenList(); it.hasNext();)
+				ordered.add(it.next());
+		}
+		// then the classes that could not be linked: each class whose
+		// parent is invalid or in a cycle, followed by its subclasses
+		// (breadth first, so still parents before children)
+		if (ordered.size() < all.size()) {
+			for (ClassTreeNode ctn : ordered)
+				mark.put(ctn, REACHED);
+			for (ClassTreeNode ctn : all) {
+				if (mark.get(ctn).intValue() == REACHED
+					|| parents.get(ctn) != null)
+					continue;
+				int i = ordered.size();
+				ordered.add(ctn);
+				for (; i < ordered.size(); i++) {
+					for (Iterator<ClassTreeNode> it = ordered.get(i)
+						.getChildrenList(); it.hasNext();)
+						ordered.add(it.next());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get every class, in the order found by link()
+	 * 
+	 * @return every class (built-in classes included), parents before
+	 *         children (breadth first); classes that could not be linked
+	 *         come last
+	 * */
+	public Vector<ClassTreeNode> getOrderedClassList() {
+		return ordered;
+	}
+
+	/**
+	 * Find the parent of a class, checking that it may be extended
+	 * 
+	 * @param ctn
+	 *            the class
+	 * @param root
+	 *            the class tree node of Object
+	 * @return the parent, or null for Object or if the parent is invalid
+	 * */
+	private ClassTreeNode parent(ClassTreeNode ctn, ClassTreeNode root) {
+		Class_ node = ctn.getASTNode();
+		String fname = node.getFilename();
+		int ln = node.getLineNum();
+		ClassTreeNode tmp = node.getParent() == null ? null
+			: map.get(node.getParent());
+
+		if (ctn == root) {
+			// ctn == "Object" - 'consume' the p=null
+		} else if (tmp == null) {
+			err.register(err.SEMANT_ERROR, fname, ln,
+				"Oops! You suck at extenz: Parent doesn't exist");
+		} else if (tmp == root) {
+			// parent == "Object" (must check before built-in)
+			return tmp;
+		} else if (tmp.isBuiltIn()) {
+			err.register(err.SEMANT_ERROR, fname, ln,
+				"Oops! Can't extend built-in");
+		} else if (!tmp.isExtendable()) { // should be caught by built-in
+			err.register(err.SEMANT_ERROR, fname, ln,
+				"Oops! You suck at extenz: " + tmp.getName()
+				+ " is not extendable.");
+		} else { // valid parent, cycles are checked by link()
+			return tmp;
 		}
 		return null;
 	}
 
 	/**
-	 * Visit a class node
+	 * Visit a class node, adding a class tree node for it
 	 * 
 	 * @param node
 	 *            the class node
@@ -63,61 +218,20 @@ public class ClassHeirarchyVisitor extends Visitor {
 		String fname = node.getFilename();
 		int ln = node.getLineNum();
 		String name = node.getName();
-		ClassTreeNode ctn, ptn, tmp, root;
-
-		if (!mxbxPwnz) {
-			// add CTN's to map
-			if (map.containsKey(name)) {
-				if (map.get(name).isBuiltIn()) {
-					err.register(err.SEMANT_ERROR, fname, ln,
-						"built-in class '"+name+"' cannot be redefined");
-				} else {
-					err.register(err.SEMANT_ERROR, fname, ln,
-						"Oops! You suck at names: "+name+" already in use.");
-				}
-			} else {
-				// add valid class name to map
-				map.put(name, new ClassTreeNode(node, false, true, map));
-			} // end !mxbxPwnz
-		} else if (mxbxPwnz) {
-			// tree-ification
-			root = map.get("Object");
-			ctn = map.get(name);
-			tmp = node.getParent() == null ? null : map.get(node.getParent());
-
-			if (ctn == root) {
-				// ctn == "Object" - 'consume' the p=null
-			} else if (tmp == null) {
-				err.register(err.SEMANT_ERROR, fname, ln,
-					"Oops! You suck at extenz: Parent doesn't exist");
-			} else if (tmp == root) {
-				// parent == "Object" (must check before built-in)
-				ctn.setParent(map.get(node.getParent()));
-			} else if (tmp.isBuiltIn()) {
+
+		if (map.containsKey(name)) {
+			if (map.get(name).isBuiltIn()) {
 				err.register(err.SEMANT_ERROR, fname, ln,
-					"Oops! Can't extend built-in");
-			} else if (!tmp.isExtendable()) { // should be caught by built-in
+					"built-in class '"+name+"' cannot be redefined");
+			} else {
 				err.register(err.SEMANT_ERROR, fname, ln,
-					"Oops! You suck at extenz: " + tmp.getName()
-					+ " is not extendable.");
-			} else { // valid parent, test for cycle
-				while (tmp != root && tmp != ctn) {
-					tmp = map.get(tmp.getASTNode().getParent());
-				}
-				if (tmp == ctn) {
-					err.register(err.SEMANT_ERROR, fname, ln,
-						"Oops! You suck at extenz: Cycle detected involving "
-						+ ctn.getName());
-				} else { // good to go
-					ctn.setParent(map.get(node.getParent()));
-				}
+					"Oops! You suck at names: "+name+" already in use.");
 			}
-			//valid class, enter scope
-			map.get(name).getVarSymbolTable().enterScope();
-			map.get(name).getMethodSymbolTable().enterScope();
 		} else {
-			System.out.println("If you can read this, I fail.");
-			// reading the source code doesn't count.
+			// add valid class name to map
+			ClassTreeNode ctn = new ClassTreeNode(node, false, true, map);
+			map.put(name, ctn);
+			added.add(ctn);
 		}
 		return null;
 	}
@@ -0,0 +1,51 @@
+package semant;
+
+import util.ClassTreeNode;
+import util.NameTable;
+
+import java.util.*;
+
+/**
+ * Lookup of ClassTreeNodes by class name, in a NameTable keyed on the
+ * NamePool ids of the program's class names. Built once the class hierarchy is complete and
+ * read-only after that, so unlike the class map (a Hashtable) lookups take
+ * no lock.
+ */
+public class ClassIndex {
+    /** Class tree nodes by class name */
+    private NameTable<ClassTreeNode> nodes;
+
+    /**
+     * ClassIndex constructor
+     * 
+     * @param map
+     *            maps class names to ClassTreeNodes
+     */
+    public ClassIndex(Hashtable<String, ClassTreeNode> map) {
+        nodes = new NameTable<ClassTreeNode>(map.size());
+        for (Map.Entry<String, ClassTreeNode> e : map.entrySet())
+            nodes.put(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Get the class tree node of a class
+     * 
+     * @param name
+     *            name of the class
+     * @return the class tree node, or null if there is no such class
+     */
+    public ClassTreeNode get(String name) {
+        return nodes.get(name);
+    }
+
+    /**
+     * Is there a class with this name?
+     * 
+     * @param name
+     *            name of the class
+     * @return true if the class exists
+     */
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+}
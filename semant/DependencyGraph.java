@@ -0,0 +1,318 @@
+package semant;
+
+import java.util.*;
+
+import ast.*;
+import util.ClassLayout;
+import util.ClassTreeNode;
+import util.DeferredErrorHandler;
+import util.Type;
+import util.TypeRegistry;
+
+/**
+ * What the last analysis of a program found about each of its classes, for
+ * analyzing the program again after an edit (see
+ * SemanticAnalyzer.setDependencyGraph()). For each class it keeps the
+ * declaration that was type checked, the errors found, and the other
+ * classes the checks depended on (see TypeCheckVisitor.getUses()); and for
+ * every class, a signature: a hash of its ancestors and of the names and
+ * types of its fields and methods.
+ *
+ * A class must be checked again if its declaration is not the one checked
+ * last time, if its signature changed (so did its own members or those it
+ * inherits), or if it depends on a class whose signature changed or which
+ * was added or removed. The results of the other classes are kept. An
+ * incremental parse reuses the Class_ of a class whose source did not
+ * change, or, if an edit above it moved it to other lines, builds a copy
+ * with its line numbers shifted (see ClassSpanCache); such a copy is
+ * recognized as the declaration checked last time by comparing the two
+ * trees, and is given the expression types found then, with its errors
+ * shifted to its new lines.
+ * */
+public class DependencyGraph {
+    /** The last type check of a class */
+    private static class Entry {
+	Class_ node;
+	Set<String> uses;
+	DeferredErrorHandler errors;
+    }
+
+    /** Last type check of each class of the program, by class name */
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Signature of every class (built-in classes included), by name */
+    private HashMap<String, Long> signatures = new HashMap<String, Long>();
+
+    /** Number of classes checked by the last analysis */
+    private int checked;
+
+    /**
+     * Start an analysis: find the classes that must be type checked again
+     *
+     * @param nodes
+     *            the classes of the program
+     * @param classes
+     *            every class, parents before children, with its
+     *            environment built
+     * @param types
+     *            types of the program
+     * @return the classes of the program to check
+     * */
+    Set<Class_> begin(List<Class_> nodes, List<ClassTreeNode> classes,
+	    TypeRegistry types) {
+	HashMap<String, Long> sigs = new HashMap<String, Long>();
+	for (ClassTreeNode ctn : classes) {
+	    ClassTreeNode ptn = ctn.getParent();
+	    Long parent = ptn == null ? null : sigs.get(ptn.getName());
+	    sigs.put(ctn.getName(), signature(types.get(ctn.getName()),
+		    parent == null ? 0 : parent));
+	}
+
+	HashSet<String> changed = new HashSet<String>();
+	for (Map.Entry<String, Long> e : sigs.entrySet()) {
+	    if (!e.getValue().equals(signatures.get(e.getKey())))
+		changed.add(e.getKey());
+	}
+	for (String name : signatures.keySet()) {
+	    if (!sigs.containsKey(name))
+		changed.add(name);
+	}
+	signatures = sigs;
+
+	Set<Class_> stale = Collections.newSetFromMap(new IdentityHashMap<Class_, Boolean>());
+	HashSet<String> names = new HashSet<String>();
+	for (Class_ node : nodes) {
+	    names.add(node.getName());
+	    Entry e = entries.get(node.getName());
+	    if (e == null || changed.contains(node.getName())
+		    || !Collections.disjoint(e.uses, changed)
+		    || e.node != node && !moved(e, node))
+		stale.add(node);
+	}
+	entries.keySet().retainAll(names);
+	checked = stale.size();
+	return stale;
+    }
+
+    /**
+     * Record the type check of a class
+     *
+     * @param node
+     *            the class
+     * @param uses
+     *            classes the checks depended on
+     * @param errors
+     *            errors found
+     * */
+    void checked(Class_ node, Set<String> uses, DeferredErrorHandler errors) {
+	Entry e = new Entry();
+	e.node = node;
+	e.uses = uses;
+	e.errors = errors;
+	entries.put(node.getName(), e);
+    }
+
+    /**
+     * Get the errors found when a class was last checked
+     *
+     * @param node
+     *            the class
+     * @return the errors
+     * */
+    DeferredErrorHandler getErrors(Class_ node) {
+	return entries.get(node.getName()).errors;
+    }
+
+    /**
+     * Get the number of classes type checked by the last analysis
+     *
+     * @return the number of classes checked (the others were kept)
+     * */
+    public int getCheckedCount() {
+	return checked;
+    }
+
+    /**
+     * Is a class the one last checked, moved to other lines? If so, take
+     * over the results of that check: copy the expression types onto the
+     * class and shift the errors found to its lines.
+     *
+     * @param e
+     *            the last check of a class of the same name
+     * @param node
+     *            the class
+     * @return true if node is e.node with every line number shifted by the
+     *         same amount
+     * */
+    private static boolean moved(Entry e, Class_ node) {
+	int delta = node.getLineNum() - e.node.getLineNum();
+	if (!e.node.getFilename().equals(node.getFilename()))
+	    return false;
+
+	// compare the trees in step, without recursion (expressions may be
+	// nested very deep)
+	ArrayList<Expr> from = new ArrayList<Expr>(), to = new ArrayList<Expr>();
+	ArrayList<Object> a = new ArrayList<Object>(), b = new ArrayList<Object>();
+	ArrayDeque<ASTNode> stack = new ArrayDeque<ASTNode>();
+	stack.push(e.node);
+	stack.push(node);
+	while (!stack.isEmpty()) {
+	    ASTNode y = stack.pop(), x = stack.pop();
+	    if (x.getClass() != y.getClass()
+		    || y.getLineNum() - x.getLineNum() != delta)
+		return false;
+	    a.clear();
+	    b.clear();
+	    parts(x, a);
+	    parts(y, b);
+	    if (a.size() != b.size())
+		return false;
+	    for (int i = 0; i < a.size(); i++) {
+		Object p = a.get(i), q = b.get(i);
+		if (p instanceof ASTNode && q instanceof ASTNode) {
+		    stack.push((ASTNode) p);
+		    stack.push((ASTNode) q);
+		} else if (p == null ? q != null : !p.equals(q)) {
+		    return false;
+		}
+	    }
+	    if (x instanceof Expr) {
+		from.add((Expr) x);
+		to.add((Expr) y);
+	    }
+	}
+
+	for (int i = 0; i < from.size(); i++) {
+	    to.get(i).setExprType(from.get(i).getExprType());
+	    if (from.get(i) instanceof CastExpr)
+		((CastExpr) to.get(i)).setUpCast(((CastExpr) from.get(i))
+			.getUpCast());
+	}
+	e.node = node;
+	e.errors = e.errors.shifted(delta);
+	return true;
+    }
+
+    /**
+     * List what a node is made of besides its kind and line: its strings
+     * (and flags) and its children (null if missing), in a fixed order
+     * */
+    private static void parts(ASTNode node, List<Object> out) {
+	if (node instanceof ListNode) {
+	    for (Iterator<ASTNode> it = ((ListNode) node).getIterator(); it
+		    .hasNext();)
+		out.add(it.next());
+	} else if (node instanceof Class_) {
+	    Class_ n = (Class_) node;
+	    Collections.addAll(out, n.getName(), n.getParent(), n
+		    .getMemberList());
+	} else if (node instanceof Field) {
+	    Field n = (Field) node;
+	    Collections.addAll(out, n.getType(), n.getName(), n.getInit());
+	} else if (node instanceof Method) {
+	    Method n = (Method) node;
+	    Collections.addAll(out, n.getReturnType(), n.getName(), n
+		    .getFormalList(), n.getStmtList());
+	} else if (node instanceof Formal) {
+	    Formal n = (Formal) node;
+	    Collections.addAll(out, n.getType(), n.getName());
+	} else if (node instanceof DeclStmt) {
+	    DeclStmt n = (DeclStmt) node;
+	    Collections.addAll(out, n.getType(), n.getName(), n.getInit());
+	} else if (node instanceof ExprStmt) {
+	    out.add(((ExprStmt) node).getExpr());
+	} else if (node instanceof IfStmt) {
+	    IfStmt n = (IfStmt) node;
+	    Collections.addAll(out, n.getPredExpr(), n.getThenStmt(), n
+		    .getElseStmt());
+	} else if (node instanceof WhileStmt) {
+	    WhileStmt n = (WhileStmt) node;
+	    Collections.addAll(out, n.getPredExpr(), n.getBodyStmt());
+	} else if (node instanceof ForStmt) {
+	    ForStmt n = (ForStmt) node;
+	    Collections.addAll(out, n.getInitExpr(), n.getPredExpr(), n
+		    .getUpdateExpr(), n.getBodyStmt());
+	} else if (node instanceof BlockStmt) {
+	    out.add(((BlockStmt) node).getStmtList());
+	} else if (node instanceof ReturnStmt) {
+	    out.add(((ReturnStmt) node).getExpr());
+	} else if (node instanceof DispatchExpr) {
+	    DispatchExpr n = (DispatchExpr) node;
+	    Collections.addAll(out, n.getRefExpr(), n.getMethodName(), n
+		    .getActualList());
+	} else if (node instanceof NewExpr) {
+	    out.add(((NewExpr) node).getType());
+	} else if (node instanceof NewArrayExpr) {
+	    NewArrayExpr n = (NewArrayExpr) node;
+	    Collections.addAll(out, n.getType(), n.getSize());
+	} else if (node instanceof InstanceofExpr) {
+	    InstanceofExpr n = (InstanceofExpr) node;
+	    Collections.addAll(out, n.getExpr(), n.getType());
+	} else if (node instanceof CastExpr) {
+	    CastExpr n = (CastExpr) node;
+	    Collections.addAll(out, n.getType(), n.getExpr());
+	} else if (node instanceof AssignExpr) {
+	    AssignExpr n = (AssignExpr) node;
+	    Collections.addAll(out, n.getRefName(), n.getName(), n.getExpr());
+	} else if (node instanceof ArrayAssignExpr) {
+	    ArrayAssignExpr n = (ArrayAssignExpr) node;
+	    Collections.addAll(out, n.getRefName(), n.getName(), n.getIndex(),
+		    n.getExpr());
+	} else if (node instanceof BinaryExpr) {
+	    BinaryExpr n = (BinaryExpr) node;
+	    Collections.addAll(out, n.getLeftExpr(), n.getRightExpr());
+	} else if (node instanceof UnaryIncrExpr) {
+	    UnaryIncrExpr n = (UnaryIncrExpr) node;
+	    Collections.addAll(out, n.isPostfix(), n.getExpr());
+	} else if (node instanceof UnaryDecrExpr) {
+	    UnaryDecrExpr n = (UnaryDecrExpr) node;
+	    Collections.addAll(out, n.isPostfix(), n.getExpr());
+	} else if (node instanceof UnaryExpr) {
+	    out.add(((UnaryExpr) node).getExpr());
+	} else if (node instanceof VarExpr) {
+	    VarExpr n = (VarExpr) node;
+	    Collections.addAll(out, n.getRef(), n.getName());
+	} else if (node instanceof ArrayExpr) {
+	    ArrayExpr n = (ArrayExpr) node;
+	    Collections.addAll(out, n.getRef(), n.getName(), n.getIndex());
+	} else if (node instanceof ConstExpr) {
+	    out.add(((ConstExpr) node).getConstant());
+	}
+	// break statements have no parts
+    }
+
+    /**
+     * Compute the signature of a class: a hash of its parent's signature,
+     * its name, and the methods and fields it declares
+     * */
+    private static long signature(Type type, long parent) {
+	long h = hash(parent, type.getName());
+	ClassLayout layout = type.getLayout();
+	if (layout == null)
+	    return h;
+	ClassLayout p = layout.getParent();
+	for (int i = 0; i < layout.getMethodCount(); i++) {
+	    Method m = layout.getMethod(i);
+	    if (p == null || i >= p.getMethodCount() || p.getMethod(i) != m)
+		h = hash(hash(h, m.getName()), layout.getMethodDescriptor(i));
+	}
+	for (int i = p == null ? 0 : p.getFieldCount(); i < layout
+		.getFieldCount(); i++) {
+	    Type t = layout.getFieldType(i);
+	    h = hash(hash(h, layout.getFieldName(i)), t.getName());
+	}
+	return h;
+    }
+
+    /**
+     * Add a string to a 64-bit FNV-1a hash
+     * */
+    private static long hash(long h, String s) {
+	h ^= 0xcbf29ce484222325L;
+	for (int i = 0; i < s.length(); i++) {
+	    h ^= s.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	return h * 0x100000001b3L; // separates consecutive strings
+    }
+}
@@ -0,0 +1,87 @@
+package semant;
+
+import ast.*;
+
+/**
+ * The declarations of the built-in classes (Object, String, TextIO and
+ * Sys), built once per JVM and shared by every SemanticAnalyzer. Nothing
+ * modifies them: built-in classes are not type checked and no code is
+ * generated for them, and the class environments of a program (see
+ * ClassEnvVisitor) only read their members. The class tree nodes, to which
+ * the classes of a program are linked, are still created for each analysis
+ * (see SemanticAnalyzer.updateBuiltins()).
+ * */
+final class Prelude {
+    /** Name of the file of the built-in classes, for error messages */
+    private static final String FILENAME = "<built-in class>";
+
+    /** Declaration of Object */
+    static final Class_ OBJECT = new Class_(-1, FILENAME, "Object", null,
+	    members(method("Object", "clone")));
+
+    // note: String, TextIO, and Sys all have fields that are not shown
+    // below. Because these classes cannot be extended and fields are
+    // protected, they cannot be accessed by other classes, so they do not
+    // have to be included in the AST.
+
+    /** Declaration of String */
+    static final Class_ STRING = new Class_(-1, FILENAME, "String", "Object",
+	    members(method("int", "length"),
+		    method("boolean", "equals", "Object", "str"),
+		    method("String", "substring", "int", "beginIndex", "int",
+			    "endIndex"),
+		    method("String", "concat", "String", "str")));
+
+    /** Declaration of TextIO */
+    static final Class_ TEXT_IO = new Class_(-1, FILENAME, "TextIO",
+	    "Object", members(method("void", "readStdin"),
+		    method("void", "readFile", "String", "readFile"),
+		    method("void", "writeStdout"),
+		    method("void", "writeStderr"),
+		    method("void", "writeFile", "String", "writeFile"),
+		    method("String", "getString"), method("int", "getInt"),
+		    method("TextIO", "putString", "String", "str"),
+		    method("TextIO", "putInt", "int", "n")));
+
+    /*
+     * MC: Adding time() to Sys requires modifying Spim, which I don't want
+     * to do yet (although I do have this working with Spim in a branched
+     * version).
+     */
+    /** Declaration of Sys */
+    static final Class_ SYS = new Class_(-1, FILENAME, "Sys", "Object",
+	    members(method("void", "exit", "int", "status")));
+
+    private Prelude() {
+    }
+
+    /**
+     * Build a member list
+     * */
+    private static MemberList members(Method... methods) {
+	MemberList list = new MemberList(-1);
+	for (Method m : methods)
+	    list.addElement(m);
+	return list;
+    }
+
+    /**
+     * Build a built-in method, whose body is just a return
+     *
+     * @param returnType
+     *            the return type
+     * @param name
+     *            name of the method
+     * @param formals
+     *            type and name of each formal, in turn
+     * */
+    private static Method method(String returnType, String name,
+	    String... formals) {
+	FormalList formalList = new FormalList(-1);
+	for (int i = 0; i < formals.length; i += 2)
+	    formalList.addElement(new Formal(-1, formals[i], formals[i + 1]));
+	return new Method(-1, returnType, name, formalList,
+		(StmtList) (new StmtList(-1)).addElement(new ReturnStmt(-1,
+			null)));
+    }
+}
@@ -29,6 +29,9 @@ import ast.*;
 import util.*;
 import visitor.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * The <tt>SemanticAnalyzer</tt> class performs semantic analysis. In particular
@@ -51,6 +54,13 @@ public class SemanticAnalyzer {
     private Hashtable<String, ClassTreeNode> classMap = 
     		new Hashtable<String, ClassTreeNode>();
 
+    /** Maps class name ids (see NamePool) to ClassTreeNode objects, built
+     * once the class hierarchy is complete */
+    private ClassIndex classIndex;
+
+    /** Canonical types of the program, built with classIndex */
+    private TypeRegistry types;
+
     /** Ordered list of ClassTreeNode objects (breadth first) */
     private Vector<ClassTreeNode> orderedClassList = new Vector<ClassTreeNode>();
 
@@ -60,6 +70,14 @@ public class SemanticAnalyzer {
     /** Boolean indicating whether debugging is enabled */
     private boolean debug = true;
 
+    /** Visitors for analyzing one class at a time (see addClass()) */
+    private ClassHeirarchyVisitor hierarchyVisitor;
+    private ClassEnvVisitor classEnvVisitor;
+    private TypeCheckVisitor typeCheckVisitor;
+
+    /** Results of the last analysis, for incremental analysis, or null */
+    private DependencyGraph dependencies;
+
     /**
      * Maximum number of inherited and non-inherited fields that can be defined
      * for any one class
@@ -79,6 +97,202 @@ public class SemanticAnalyzer {
 	this.debug = debug;
     }
 
+    /**
+     * SemanticAnalyzer constructor for a program that is analyzed one class
+     * at a time, as its classes are parsed. Instead of calling analyze():
+     * pass every class to addClass(), then call linkClasses(),
+     * buildClassEnv() for every class it returns (in order) or
+     * buildClassEnvs() for all of them, checkMain(),
+     * typeCheck() for every class, and finally checkErrors().
+     * 
+     * @param debug
+     *            boolean indicating whether debugging is enabled
+     * */
+    public SemanticAnalyzer(boolean debug) {
+	this(null, debug);
+    }
+
+    /**
+     * Add a class to the class hierarchy tree, checking its name. Its
+     * parent is linked by linkClasses().
+     * 
+     * @param node
+     *            the class, as soon as it is parsed
+     * */
+    public void addClass(Class_ node) {
+	if (hierarchyVisitor == null) {
+	    HashSet<String> primitives = new HashSet<String>();
+	    HashSet<String> reserved = new HashSet<String>();
+	    specials(primitives, reserved);
+	    updateBuiltins();
+	    hierarchyVisitor = new ClassHeirarchyVisitor(classMap, errorHandler,
+		    primitives, reserved);
+	}
+	hierarchyVisitor.addClass(node);
+    }
+
+    /**
+     * Once every class has been added, link each class to its parent and
+     * check the hierarchy
+     * 
+     * @return every class (built-in classes included), parents before
+     *         children; classes that could not be linked come last
+     * */
+    public Vector<ClassTreeNode> linkClasses() {
+	hierarchyVisitor.link();
+	orderedClassList = hierarchyVisitor.getOrderedClassList();
+	classIndex = new ClassIndex(classMap);
+	types = new TypeRegistry(orderedClassList);
+	return orderedClassList;
+    }
+
+    /**
+     * Build the environment (member symbol tables) of one class
+     * 
+     * @param ctn
+     *            the class, after linkClasses()
+     * */
+    public void buildClassEnv(ClassTreeNode ctn) {
+	if (classEnvVisitor == null) {
+	    HashSet<String> reserved = new HashSet<String>();
+	    specials(new HashSet<String>(), reserved);
+	    classEnvVisitor = new ClassEnvVisitor(classMap, classIndex, types,
+		    errorHandler, reserved);
+	}
+	ctn.getASTNode().accept(classEnvVisitor);
+    }
+
+    /**
+     * Build the environments of classes as buildClassEnv() does, in waves
+     * by depth in the class hierarchy tree. A class only needs the
+     * environments of its ancestors, which earlier waves built, so the
+     * classes of a wave are built concurrently, each by its own visitor
+     * writing only to its own symbol tables. Errors are still reported in
+     * the order of the classes.
+     *
+     * @param classes
+     *            the classes, parents before children, as returned by
+     *            linkClasses()
+     * @param pool
+     *            pool to build each wave on
+     * */
+    public void buildClassEnvs(List<ClassTreeNode> classes, ForkJoinPool pool) {
+	final HashSet<String> reserved = new HashSet<String>();
+	specials(new HashSet<String>(), reserved);
+
+	// group the classes by depth; classes that could not be linked
+	// (their parents are not in the tree) are built last, one after
+	// another, since a subtree of them may hang off any of them
+	IdentityHashMap<ClassTreeNode, Integer> depth = new IdentityHashMap<ClassTreeNode, Integer>();
+	ArrayList<ArrayList<ClassTreeNode>> waves = new ArrayList<ArrayList<ClassTreeNode>>();
+	ArrayList<ClassTreeNode> unlinked = new ArrayList<ClassTreeNode>();
+	for (ClassTreeNode ctn : classes) {
+	    Integer d = ctn == root ? Integer.valueOf(0)
+		    : ctn.getParent() == null ? null : depth.get(ctn.getParent());
+	    if (d == null) {
+		unlinked.add(ctn);
+		continue;
+	    }
+	    if (ctn != root)
+		d = d + 1;
+	    depth.put(ctn, d);
+	    while (d >= waves.size())
+		waves.add(new ArrayList<ClassTreeNode>());
+	    waves.get(d).add(ctn);
+	}
+
+	IdentityHashMap<ClassTreeNode, DeferredErrorHandler> errors = new IdentityHashMap<ClassTreeNode, DeferredErrorHandler>();
+	for (ArrayList<ClassTreeNode> wave : waves) {
+	    ArrayList<ForkJoinTask<DeferredErrorHandler>> tasks =
+		    new ArrayList<ForkJoinTask<DeferredErrorHandler>>();
+	    for (final ClassTreeNode ctn : wave) {
+		tasks.add(pool.submit(new Callable<DeferredErrorHandler>() {
+		    public DeferredErrorHandler call() {
+			return buildClassEnv(ctn, reserved);
+		    }
+		}));
+	    }
+	    // the next wave reads this wave's symbol tables
+	    for (int i = 0; i < wave.size(); i++)
+		errors.put(wave.get(i), tasks.get(i).join());
+	}
+	for (ClassTreeNode ctn : unlinked)
+	    errors.put(ctn, buildClassEnv(ctn, reserved));
+
+	for (ClassTreeNode ctn : classes)
+	    errors.get(ctn).replay(errorHandler);
+    }
+
+    /**
+     * Build the environment of one class with a visitor of its own
+     *
+     * @return the errors found
+     * */
+    private DeferredErrorHandler buildClassEnv(ClassTreeNode ctn,
+	    HashSet<String> reserved) {
+	DeferredErrorHandler errors = new DeferredErrorHandler();
+	ctn.getASTNode().accept(
+		new ClassEnvVisitor(classMap, classIndex, types, errors,
+			reserved));
+	return errors;
+    }
+
+    /**
+     * Type check the members of one user-defined class
+     * 
+     * @param ctn
+     *            the class, after every class environment is built
+     * */
+    public void typeCheck(ClassTreeNode ctn) {
+	if (ctn.isBuiltIn())
+	    return;
+	if (typeCheckVisitor == null) {
+	    HashSet<String> reserved = new HashSet<String>();
+	    specials(new HashSet<String>(), reserved);
+	    typeCheckVisitor = new TypeCheckVisitor(classIndex, types,
+		    errorHandler, reserved);
+	}
+	ctn.getASTNode().accept(typeCheckVisitor);
+    }
+
+    /**
+     * Get the canonical types of the program
+     * 
+     * @return the type registry, once the classes are linked
+     * */
+    public TypeRegistry getTypes() {
+	return types;
+    }
+
+    /**
+     * Analyze incrementally: analyze() only type checks the classes that
+     * changed since the analysis recorded in a dependency graph, or that
+     * depend on classes whose members changed, and keeps the results of the
+     * others (see DependencyGraph); it then records this analysis in the
+     * graph. Classes are only recognized as unchanged if the parser reuses
+     * their Class_ nodes, or copies them to the lines they moved to (see
+     * Parser.setIncremental()). The class hierarchy
+     * and environments are still built for every class, since they are
+     * linear in the number of members rather than in the size of the code.
+     * 
+     * @param graph
+     *            the graph kept from the last analysis of the program (an
+     *            empty graph the first time)
+     * */
+    public void setDependencyGraph(DependencyGraph graph) {
+	this.dependencies = graph;
+    }
+
+    /**
+     * Report any semantic errors found so far (exiting if there were any)
+     * 
+     * @return root of the class hierarchy tree (needed for code generation)
+     * */
+    public ClassTreeNode checkErrors() {
+	errorHandler.checkErrors();
+	return root;
+    }
+
     /**
      * Analyze the AST checking for semantic errors and annotating the tree Also
      * builds an auxiliary class hierarchy tree
@@ -94,6 +308,20 @@ public class SemanticAnalyzer {
      *         manual for more details on each of these steps.
      * */
     public ClassTreeNode analyze() {
+	return analyze(null);
+    }
+
+    /**
+     * Analyze the AST as analyze() does, building the class environments
+     * and type checking the classes concurrently. Errors are still
+     * reported in the same order.
+     * 
+     * @param pool
+     *            pool to build and type check the classes on, or null to
+     *            handle them one after another
+     * @return root of the class hierarchy tree (needed for code generation)
+     * */
+    public ClassTreeNode analyze(ForkJoinPool pool) {
 
 	// list of class declarations
 	ClassList classList = program.getClassList();
@@ -105,7 +333,10 @@ public class SemanticAnalyzer {
 	// PART 2: class symbol table
 	// build class symbol table for members and check that members are
 	// declared properly
-	buildSymbolTable();
+	if (pool == null)
+	    buildSymbolTable();
+	else
+	    buildClassEnvs(orderedClassList, pool);
 
 	// PART 3: Main class/main method
 	// check that there is a Main class and main method
@@ -114,7 +345,12 @@ public class SemanticAnalyzer {
 	// PART 4: type checking
 	// type check each member (fields and methods) of each user-defined
 	// class
-	typeCheck();
+	if (dependencies != null)
+	    typeCheckChanged(pool);
+	else if (pool == null)
+	    typeCheck();
+	else
+	    typeCheck(pool);
 
 	errorHandler.checkErrors();
 	return root;
@@ -124,155 +360,17 @@ public class SemanticAnalyzer {
      * Add built in classes to the class tree
      * */
     private void updateBuiltins() {
-	// create AST node for object
-	Class_ astNode = new Class_(-1, "<built-in class>", "Object", null,
-		(MemberList) (new MemberList(-1)).addElement(new Method(-1,
-			"Object", "clone", new FormalList(-1),
-			(StmtList) (new StmtList(-1))
-				.addElement(new ReturnStmt(-1, null)))));
-	// create a class tree node for object, save in variable root
-	root = new ClassTreeNode(astNode, true, true, classMap);
-	// add object class tree node to the mapping
+	// the declarations of the built-in classes are shared (see Prelude);
+	// only their class tree nodes, which the classes of this program are
+	// linked to, are created for each analysis
+	root = new ClassTreeNode(Prelude.OBJECT, true, true, classMap);
 	classMap.put("Object", root);
-
-	// note: String, TextIO, and Sys all have fields that are not shown
-	// below. Because
-	// these classes cannot be extended and fields are protected, they
-	// cannot be accessed by
-	// other classes, so they do not have to be included in the AST.
-
-	// create AST node for String
-	astNode = new Class_(-1, "<built-in class>", "String", "Object",
-		(MemberList) (new MemberList(-1))
-			.addElement(
-				new Method(-1, "int", "length", new FormalList(
-					-1), (StmtList) (new StmtList(-1))
-					.addElement(new ReturnStmt(-1, null))))
-			.addElement(
-				new Method(-1, "boolean", "equals",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"Object", "str")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "String", "substring",
-					(FormalList) (new FormalList(-1))
-						.addElement(
-							new Formal(-1, "int",
-								"beginIndex"))
-						.addElement(
-							new Formal(-1, "int",
-								"endIndex")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "String", "concat",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"String", "str")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null)))));
-	// create class tree node for String, add it to the mapping
-	classMap.put("String",
-		new ClassTreeNode(astNode, true, false, classMap));
-
-	// create AST node for TextIO
-	astNode = new Class_(
-		-1,
-		"<built-in class>",
-		"TextIO",
-		"Object",
-		(MemberList) (new MemberList(-1))
-			.addElement(
-				new Method(-1, "void", "readStdin",
-					new FormalList(-1),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "void", "readFile",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"String", "readFile")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "void", "writeStdout",
-					new FormalList(-1),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "void", "writeStderr",
-					new FormalList(-1),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(
-					-1,
-					"void",
-					"writeFile",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"String", "writeFile")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "String", "getString",
-					new FormalList(-1),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "int", "getInt", new FormalList(
-					-1), (StmtList) (new StmtList(-1))
-					.addElement(new ReturnStmt(-1, null))))
-			.addElement(
-				new Method(-1, "TextIO", "putString",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"String", "str")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null))))
-			.addElement(
-				new Method(-1, "TextIO", "putInt",
-					(FormalList) (new FormalList(-1))
-						.addElement(new Formal(-1,
-							"int", "n")),
-					(StmtList) (new StmtList(-1))
-						.addElement(new ReturnStmt(-1,
-							null)))));
-	// create class tree node for TextIO, add it to the mapping
-	classMap.put("TextIO",
-		new ClassTreeNode(astNode, true, false, classMap));
-
-	// create AST node for Sys
-	astNode = new Class_(-1, "<built-in class>", "Sys", "Object",
-		(MemberList) (new MemberList(-1)).addElement(new Method(-1,
-			"void", "exit", (FormalList) (new FormalList(-1))
-				.addElement(new Formal(-1, "int", "status")),
-			(StmtList) (new StmtList(-1))
-				.addElement(new ReturnStmt(-1, null))))
-	/*
-	 * MC: Adding time() requires modifying Spim, which I don't want to do
-	 * yet (although I do have this working with Spim in a branched
-	 * version).
-	 */
-	/*
-	 * .addElement(new Method(-1, "int", "time", new FormalList(-1),
-	 * (StmtList)(new StmtList(-1)) .addElement(new ReturnStmt(-1, null))))
-	 */
-	);
-	// create class tree node for Sys, add it to the mapping
-	classMap.put("Sys", new ClassTreeNode(astNode, true, false, classMap));
+	classMap.put("String", new ClassTreeNode(Prelude.STRING, true, false,
+		classMap));
+	classMap.put("TextIO", new ClassTreeNode(Prelude.TEXT_IO, true, false,
+		classMap));
+	classMap.put("Sys", new ClassTreeNode(Prelude.SYS, true, false,
+		classMap));
     }
 
     /*************************************************************************
@@ -299,8 +397,12 @@ public class SemanticAnalyzer {
 	    System.out.println("_enter: buildClassTree_");
 
 	updateBuiltins();
-	new ClassHeirarchyVisitor(classMap, errorHandler, primitives, reserved)
-		.visit(program);
+	hierarchyVisitor = new ClassHeirarchyVisitor(classMap, errorHandler,
+		primitives, reserved);
+	hierarchyVisitor.visit(program);
+	orderedClassList = hierarchyVisitor.getOrderedClassList();
+	classIndex = new ClassIndex(classMap);
+	types = new TypeRegistry(orderedClassList);
 
 	if (debug) {
 	    String inh;
@@ -328,12 +430,14 @@ public class SemanticAnalyzer {
 	if (debug)
 	    System.out.println("\n_enter buildSymbolTable_");
 
-	HashSet<String> primitives = new HashSet<String>();
 	HashSet<String> reserved = new HashSet<String>();
-	specials(primitives, reserved);
+	specials(new HashSet<String>(), reserved);
 
-	new ClassEnvVisitor(classMap, errorHandler, primitives, reserved)
-		.visit(program);
+	// parents before children
+	ClassEnvVisitor visitor = new ClassEnvVisitor(classMap, classIndex,
+		types, errorHandler, reserved);
+	for (ClassTreeNode ctn : orderedClassList)
+	    ctn.getASTNode().accept(visitor);
 
 	if (debug)
 	    System.out.println("_exit buildSymbolTable_");
@@ -342,7 +446,7 @@ public class SemanticAnalyzer {
     /**
      * Check that Main class and main() method are defined correctly
      * */
-    private void checkMain() {
+    public void checkMain() {
 	boolean debug = false;
 	if (debug)
 	    System.out.println("\n_enter: checkMain_");
@@ -388,21 +492,105 @@ public class SemanticAnalyzer {
      * Type check each class member
      * */
     private void typeCheck() {
-	HashSet<String> primitives = new HashSet<String>();
 	HashSet<String> reserved = new HashSet<String>();
-	specials(primitives, reserved);
+	specials(new HashSet<String>(), reserved);
 
 	boolean debug = false;
 	if (debug)
 	    System.out.println("\n_enter: typeCheck_");
 
-	new TypeCheckVisitor(classMap, errorHandler, primitives, reserved)
+	new TypeCheckVisitor(classIndex, types, errorHandler, reserved)
 		.visit(program);
 
 	if (debug)
 	    System.out.println("_exit: typeCheck_");
     }
 
+    /**
+     * Type check each class member, one task (with its own visitor and
+     * error list) per class. The class environments are only read by now,
+     * so the tasks share nothing they write; their errors are reported in
+     * source order once every task is done.
+     * 
+     * @param pool
+     *            pool to run the tasks on
+     * */
+    private void typeCheck(ForkJoinPool pool) {
+	final HashSet<String> reserved = new HashSet<String>();
+	specials(new HashSet<String>(), reserved);
+
+	ArrayList<ForkJoinTask<DeferredErrorHandler>> tasks = 
+		new ArrayList<ForkJoinTask<DeferredErrorHandler>>();
+	for (Iterator<ASTNode> it = program.getClassList().getIterator(); it
+		.hasNext();) {
+	    final Class_ node = (Class_) it.next();
+	    tasks.add(pool.submit(new Callable<DeferredErrorHandler>() {
+		public DeferredErrorHandler call() {
+		    DeferredErrorHandler errors = new DeferredErrorHandler();
+		    node.accept(new TypeCheckVisitor(classIndex, types, errors,
+			    reserved));
+		    return errors;
+		}
+	    }));
+	}
+
+	for (ForkJoinTask<DeferredErrorHandler> task : tasks)
+	    task.join().replay(errorHandler);
+    }
+
+    /**
+     * Type check the classes that changed since the analysis recorded in
+     * the dependency graph (concurrently if there is a pool), and report
+     * the errors of the others as found then, all in source order
+     * 
+     * @param pool
+     *            pool to type check the classes on, or null
+     * */
+    private void typeCheckChanged(ForkJoinPool pool) {
+	HashSet<String> reserved = new HashSet<String>();
+	specials(new HashSet<String>(), reserved);
+
+	ArrayList<Class_> nodes = new ArrayList<Class_>();
+	for (Iterator<ASTNode> it = program.getClassList().getIterator(); it
+		.hasNext();)
+	    nodes.add((Class_) it.next());
+	Set<Class_> stale = dependencies.begin(nodes, orderedClassList, types);
+
+	int n = nodes.size();
+	TypeCheckVisitor[] visitors = new TypeCheckVisitor[n];
+	DeferredErrorHandler[] errors = new DeferredErrorHandler[n];
+	ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+	for (int i = 0; i < n; i++) {
+	    if (!stale.contains(nodes.get(i)))
+		continue;
+	    errors[i] = new DeferredErrorHandler();
+	    visitors[i] = new TypeCheckVisitor(classIndex, types, errors[i],
+		    reserved);
+	    visitors[i].recordUses();
+	    final Class_ node = nodes.get(i);
+	    final TypeCheckVisitor visitor = visitors[i];
+	    ForkJoinTask<?> task = ForkJoinTask.adapt(new Runnable() {
+		public void run() {
+		    node.accept(visitor);
+		}
+	    });
+	    if (pool == null)
+		task.invoke();
+	    else
+		pool.execute(task);
+	    tasks.add(task);
+	}
+	for (ForkJoinTask<?> task : tasks)
+	    task.join();
+
+	for (int i = 0; i < n; i++) {
+	    if (visitors[i] != null)
+		dependencies.checked(nodes.get(i), visitors[i].getUses(),
+			errors[i]);
+	    dependencies.getErrors(nodes.get(i)).replay(errorHandler);
+	}
+    }
+
     /**
      * rsv.contains(blah) is a lot cleaner than blah.equals("this") ||
      * blah.equals("super") || blah.equals("null") || ...
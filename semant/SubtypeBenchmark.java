@@ -0,0 +1,79 @@
+package semant;
+
+import java.util.*;
+
+import ast.*;
+import util.ClassTreeNode;
+import util.Type;
+import util.TypeRegistry;
+
+/**
+ * Subclass test benchmark. Builds a synthetic class hierarchy of a single
+ * chain of classes (the worst case for walking parent links) and times
+ * random subclass queries answered by walking parent links and by the
+ * preorder/postorder numbering of the TypeRegistry.
+ *
+ * Usage: java semant.SubtypeBenchmark [depth [queries]]
+ *
+ * Builds against the framework's ast package and util.ClassTreeNode, which
+ * this source tree does not include; no results are recorded here.
+ * */
+public class SubtypeBenchmark {
+    public static void main(String[] args) {
+	int depth = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+	int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+	// Object <- C0 <- C1 <- ... <- C(depth-1)
+	Hashtable<String, ClassTreeNode> map = new Hashtable<String, ClassTreeNode>();
+	ClassTreeNode[] chain = new ClassTreeNode[depth + 1];
+	chain[0] = new ClassTreeNode(new Class_(-1, "<built-in class>",
+		"Object", null, new MemberList(-1)), true, true, map);
+	map.put("Object", chain[0]);
+	for (int i = 1; i <= depth; i++) {
+	    String name = "C" + (i - 1);
+	    chain[i] = new ClassTreeNode(new Class_(i, "bench.btm", name,
+		    chain[i - 1].getName(), new MemberList(i)), false, true, map);
+	    map.put(name, chain[i]);
+	    chain[i].setParent(chain[i - 1]);
+	}
+
+	long start = System.nanoTime();
+	TypeRegistry types = new TypeRegistry(map.values());
+	long build = System.nanoTime() - start;
+	Type[] t = new Type[chain.length];
+	for (int i = 0; i < chain.length; i++)
+	    t[i] = types.get(chain[i].getName());
+
+	Random random = new Random(42);
+	int[] a = new int[queries], b = new int[queries];
+	for (int i = 0; i < queries; i++) {
+	    a[i] = random.nextInt(chain.length);
+	    b[i] = random.nextInt(chain.length);
+	}
+
+	int walkYes = 0, intervalYes = 0;
+	start = System.nanoTime();
+	for (int i = 0; i < queries; i++) {
+	    ClassTreeNode c = chain[a[i]];
+	    while (c != null && c != chain[b[i]])
+		c = c.getParent();
+	    if (c != null)
+		walkYes++;
+	}
+	long walk = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	for (int i = 0; i < queries; i++) {
+	    if (t[a[i]].isSubclassOf(t[b[i]]))
+		intervalYes++;
+	}
+	long interval = System.nanoTime() - start;
+
+	if (walkYes != intervalYes)
+	    throw new IllegalStateException("results differ: " + walkYes
+		    + " != " + intervalYes);
+	System.out.printf("depth %d, %d queries: numbering %.1f ms, "
+		+ "parent walk %.1f ms, interval test %.1f ms%n", depth,
+		queries, build / 1e6, walk / 1e6, interval / 1e6);
+    }
+}
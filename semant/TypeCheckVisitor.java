@@ -5,29 +5,183 @@ import ast.*;
 import util.*;
 import java.util.*;
 
+/**
+ * Type checks the members of a class. Types are the canonical Type objects
+ * of a TypeRegistry: each expression visit returns the type of the
+ * expression (and records its name with setExprType()), and variable
+ * symbol tables map names to Types, so types are compared by reference.
+ *
+ * Formals and local variables are kept in the visitor's own persistent
+ * symbol table; fields and methods are found in the flattened member
+ * tables of their classes (see ClassLayout), keyed by canonical name, so
+ * resolving a variable builds no strings. The class environments (built by
+ * ClassEnvVisitor) are only read, so once every environment is built,
+ * separate visitors may check different classes at the same time (see
+ * SemanticAnalyzer.analyze(ForkJoinPool)).
+ */
 public class TypeCheckVisitor extends Visitor {
 	ClassTreeNode ctn, ptn; // class, parent tree nodes
+	Type ctype, ptype; // class, parent types
 	String fname;
-	Hashtable<String, ClassTreeNode> map;
+	ClassIndex classes;
+	TypeRegistry types;
+	Type object, string;
 	ErrorHandler err;
-	HashSet<String> prim, rsv; // primitive types, reserved words
-	SymbolTable vst, mst, tst; // var, method, temp symbol tables
+	HashSet<String> rsv; // reserved words
+	ClassLayout layout; // fields and methods of the class
+	PersistentSymbolTable locals; // formals and local variables
 	ArrayDeque<Integer> breakto;
+	HashSet<String> uses; // classes the checks depend on, if recorded
+	int depth; // nesting depth of expression checks
+	IdentityHashMap<Expr, Type> done = new IdentityHashMap<Expr, Type>();
 
 	/**
 	 * TypeCheckVisitor constructor
 	 * 
-	 * @param ctn
-	 *            ClassTreeNode to be visited
+	 * @param classes
+	 *            class tree nodes by class name
+	 * @param types
+	 *            types of the program
+	 * @param err
+	 *            error handler
+	 * @param rsv
+	 *            reserved words
 	 */
-	public TypeCheckVisitor(Hashtable<String, ClassTreeNode> classMap,
-		ErrorHandler err, HashSet<String> prim, HashSet<String> rsv) {
-		this.map = classMap;
+	public TypeCheckVisitor(ClassIndex classes, TypeRegistry types,
+		ErrorHandler err, HashSet<String> rsv) {
+		this.classes = classes;
+		this.types = types;
+		this.object = types.getObject();
+		this.string = types.get("String");
 		this.err = err;
-		this.prim = prim;
 		this.rsv = rsv;
 	}
 
+	/**
+	 * Type check an expression. Expressions nested deeper than
+	 * PostOrder.MAX_RECURSION are checked without recursion.
+	 * 
+	 * @param expr
+	 *            the expression
+	 * @return its type
+	 */
+	private Type check(Expr expr) {
+		if (done.containsKey(expr))
+			return done.remove(expr);
+		Type type;
+		if (depth < PostOrder.MAX_RECURSION) {
+			depth++;
+			type = (Type) expr.accept(this);
+			depth--;
+			return type;
+		}
+
+		// too deep to recurse: visit the nodes children first, so that
+		// each visit finds the types of its children in done
+		int saved = depth;
+		depth = 0;
+		for (Expr e : PostOrder.of(expr))
+			done.put(e, (Type) e.accept(this));
+		depth = saved;
+		type = done.get(expr);
+		done.clear();
+		return type;
+	}
+
+	/**
+	 * Set the type of an expression
+	 * 
+	 * @param expr
+	 *            the expression
+	 * @param type
+	 *            its type
+	 * @return type
+	 */
+	private Type typed(Expr expr, Type type) {
+		expr.setExprType(type.getName());
+		return type;
+	}
+
+	/**
+	 * Record, for each class checked from now on, the other classes its
+	 * checks depend on (see getUses()), for incremental analysis
+	 */
+	public void recordUses() {
+		uses = new HashSet<String>();
+	}
+
+	/**
+	 * Get the classes the checks of the last class depended on, besides
+	 * its own ancestors and members: the classes of its field, formal and
+	 * local variable types, of the objects it dispatches on, and of the
+	 * types it creates, tests and casts to, including names of classes that
+	 * do not exist (yet)
+	 * 
+	 * @return the class names, or null if uses are not recorded
+	 */
+	public Set<String> getUses() {
+		return uses;
+	}
+
+	/**
+	 * Record that the checks of this class depend on a type
+	 * 
+	 * @param name
+	 *            name of the type, as written
+	 * @param type
+	 *            the type, or null if there is no such type
+	 */
+	private void use(String name, Type type) {
+		if (uses == null)
+			return;
+		if (type != null) {
+			use(type);
+		} else if (name != null) {
+			uses.add(name.endsWith("[]") ? name.substring(0,
+				name.length() - 2) : name);
+		}
+	}
+
+	/**
+	 * Record that the checks of this class depend on a type
+	 * 
+	 * @param type
+	 *            the type
+	 */
+	private void use(Type type) {
+		if (uses == null)
+			return;
+		if (type.isArray())
+			type = type.getElementType();
+		if (type.isClass())
+			uses.add(type.getName());
+	}
+
+	/**
+	 * Look up a variable: a formal or local variable, or else a field
+	 * 
+	 * @param name
+	 *            name of the variable
+	 * @return its type, or null if there is no such variable
+	 */
+	private Type lookup(String name) {
+		Object type = locals.lookup(name);
+		return (Type) (type != null ? type : layout.getFieldType(name));
+	}
+
+	/**
+	 * Get the class a cast converts from or to: the class of a class type
+	 * or of the elements of an array type, Object for anything else
+	 * 
+	 * @param type
+	 *            the type
+	 * @return the class type
+	 */
+	private Type castClass(Type type) {
+		Type elem = type.isArray() ? type.getElementType() : type;
+		return elem.isClass() ? elem : object;
+	}
+
 	/**
 	 * Visit a program node
 	 * 
@@ -61,12 +215,16 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(Class_ node) {
-		ctn = map.get(node.getName());
+		ctn = classes.get(node.getName());
 		ptn = ctn.getParent();
+		ctype = types.get(ctn.getName());
+		ptype = ptn == null ? null : types.get(ptn.getName());
 		fname = node.getFilename();
-		vst = ctn.getVarSymbolTable();
-		mst = ctn.getMethodSymbolTable();
+		layout = ctype.getLayout();
+		locals = PersistentSymbolTable.EMPTY;
 		breakto = new ArrayDeque<Integer>(13);
+		if (uses != null)
+			uses = new HashSet<String>();
 
 		node.getMemberList().accept(this);
 
@@ -97,17 +255,16 @@ public class TypeCheckVisitor extends Visitor {
 	public Object visit(Field node) {
 		int ln = node.getLineNum();
 		String name = node.getName();
-		String ftype, itype; // field, init types
+		Type ftype, itype; // field, init types
 
-		ftype = node.getType();
+		ftype = types.get(node.getType());
+		use(node.getType(), ftype);
 		if (node.getInit() != null) {
-			node.getInit().accept(this);
-			itype = node.getInit().getExprType();
-			if (itype.equals("void")) {
+			itype = check(node.getInit());
+			if (itype == Type.VOID) {
 				err.register(err.SEMANT_ERROR, fname, ln,
 				"expression type '"+itype+"' of field 's' cannot be void");
-			} else if (!ftype.equals(itype) && (prim.contains(ftype)
-				|| prim.contains(ftype))) {
+			} else if (ftype != itype && ftype != null && ftype.isPrimitive()) {
 				//string sonsidered primitive?
 				err.register(err.SEMANT_ERROR, fname, ln, "return type '"
 					+ itype + "' is not compatible with declared return type '"
@@ -127,14 +284,12 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(Method node) {
-		vst.enterScope();
-		mst.enterScope();
+		locals = locals.enterScope();
 
 		node.getFormalList().accept(this);
 		node.getStmtList().accept(this);
 
-		vst.exitScope();
-		mst.exitScope();
+		locals = locals.exitScope();
 		return null;
 	}
 
@@ -159,36 +314,23 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(Formal node) {
-	   	 String name = node.getName();
-	   	 String type = node.getType();
-	   	 boolean isArr = false;
-	   	 
-	   	 if(type.contains("[]")){
-	   		 isArr = true;
-	   		 type = type.substring(0,type.length()-2);
-	   	 }
-
-	   	
-
-	   	 if (rsv.contains(name)) {
-	   		
-	   		 // err
-	   	 } else if (vst.peek(name) != null) {
-	   		 
-	   		 // err
-	   	 } else {
-	   		 if (!(prim.contains(type) || map.containsKey(type))) {
-	   			
-	   			 type = "Object";
-	   			 // err
-	   		 }
-	   		 if(isArr){
-	   			 type = type + "[]";
-	   		 }
-	   		 
-	   		 vst.add(name, type);
-	   	 }
-	   	 return null;
+		String name = node.getName();
+		Type type = types.get(node.getType());
+
+		use(node.getType(), type);
+		if (rsv.contains(name)) {
+			// err
+		} else if (locals.peek(name) != null) {
+			// err
+		} else {
+			if (type == null || type == Type.VOID || type == Type.NULL) {
+				type = node.getType().endsWith("[]") ? object
+					.getArrayType() : object;
+				// err
+			}
+			locals = locals.add(name, type);
+		}
+		return null;
 	}
 
 	/**
@@ -199,12 +341,81 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(StmtList node) {
-		for (Iterator it = node.getIterator(); it.hasNext();) {
-			((Stmt) it.next()).accept(this);
-		}
+		run(node);
 		return null;
 	}
 
+	/** Marks on the statement stack of run() */
+	private static final Object END_BLOCK = new Object(),
+		END_LOOP = new Object();
+
+	/**
+	 * Type check statements with an explicit stack rather than recursion,
+	 * so that deeply nested blocks and long else-if chains need no deep
+	 * thread stack. Leaving a block or loop is a mark on the stack.
+	 * 
+	 * @param first
+	 *            a statement or a list of statements
+	 */
+	private void run(ASTNode first) {
+		ArrayDeque<Object> work = new ArrayDeque<Object>();
+		work.push(first);
+		while (!work.isEmpty()) {
+			Object next = work.pop();
+			if (next == END_BLOCK) {
+				locals = locals.exitScope();
+			} else if (next == END_LOOP) {
+				breakto.pop();
+			} else if (next instanceof StmtList) {
+				// push the statements so the first is on top
+				ArrayList<ASTNode> stmts = new ArrayList<ASTNode>();
+				for (Iterator<ASTNode> it = ((StmtList) next).getIterator(); it
+					.hasNext();)
+					stmts.add(it.next());
+				for (int i = stmts.size() - 1; i >= 0; i--)
+					work.push(stmts.get(i));
+			} else if (next instanceof BlockStmt) {
+				locals = locals.enterScope();
+				work.push(END_BLOCK);
+				work.push(((BlockStmt) next).getStmtList());
+			} else if (next instanceof IfStmt) {
+				IfStmt node = (IfStmt) next;
+				if (check(node.getPredExpr()) != Type.BOOLEAN) {
+					// err
+				}
+				if (node.getElseStmt() != null)
+					work.push(node.getElseStmt());
+				work.push(node.getThenStmt());
+			} else if (next instanceof WhileStmt) {
+				WhileStmt node = (WhileStmt) next;
+				breakto.push(locals.getCurrScopeLevel());
+				if (check(node.getPredExpr()) != Type.BOOLEAN) {
+					// err
+				}
+				work.push(END_LOOP);
+				work.push(node.getBodyStmt());
+			} else if (next instanceof ForStmt) {
+				ForStmt node = (ForStmt) next;
+				breakto.push(locals.getCurrScopeLevel());
+				if (node.getInitExpr() != null) {
+					check(node.getInitExpr());
+				}
+				if (node.getPredExpr() != null) {
+					if (check(node.getPredExpr()) != Type.BOOLEAN) {
+						// err
+					}
+				}
+				if (node.getUpdateExpr() != null) {
+					check(node.getUpdateExpr());
+				}
+				work.push(END_LOOP);
+				work.push(node.getBodyStmt());
+			} else {
+				((ASTNode) next).accept(this);
+			}
+		}
+	}
+
 	/**
 	 * Visit a declaration statement node
 	 * 
@@ -214,25 +425,22 @@ public class TypeCheckVisitor extends Visitor {
 	 * */
 	public Object visit(DeclStmt node) {
 		String name = node.getName();
-		String type = node.getType();
-
-		node.getInit().accept(this);
-
-		
+		Type type = types.get(node.getType());
+		Type init = check(node.getInit());
 
+		use(node.getType(), type);
 		if (rsv.contains(name)) {
 			// err
-		} else if (vst.peek(name) != null) {
+		} else if (locals.peek(name) != null) {
 			// err
 		} else {
-			if (!(prim.contains(type) || map.containsKey(type))) {
+			if (type == null || type == Type.VOID || type == Type.NULL) {
 				// err
-				type = "Object";
-			} else if (!type.equals(node.getInit().getExprType())) {
+				type = object;
+			} else if (type != init) {
 				// err, keep going? (prim types not children of obj)
-				type = "Object";
 			}
-			vst.add(node.getName(), node.getType());
+			locals = locals.add(name, type);
 		}
 		return null;
 	}
@@ -245,19 +453,13 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ExprStmt node) {
-		node.getExpr().accept(this);
-		String exp = node.getExpr().getClass().toString();
-
-		switch (exp) {
-			case "AssignExpr":
-			case "ArrayAssignExpr":
-			case "NewExpr":
-			case "DispatchExpr":
-			case "UnaryIncExpr":
-			case "UnaryDecExpr":
-				break;
-			default:
-				// err
+		Expr expr = node.getExpr();
+		check(expr);
+
+		if (!(expr instanceof AssignExpr || expr instanceof ArrayAssignExpr
+			|| expr instanceof NewExpr || expr instanceof DispatchExpr
+			|| expr instanceof UnaryIncrExpr || expr instanceof UnaryDecrExpr)) {
+			// err
 		}
 		return null;
 	}
@@ -270,12 +472,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(IfStmt node) {
-		node.getPredExpr().accept(this);
-		if (!node.getPredExpr().getExprType().equals("boolean")) {
-			// err
-		}
-		node.getThenStmt().accept(this);
-		node.getElseStmt().accept(this);
+		run(node);
 		return null;
 	}
 
@@ -287,13 +484,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(WhileStmt node) {
-		breakto.push(vst.getCurrScopeLevel());
-		node.getPredExpr().accept(this);
-		if (!node.getPredExpr().getExprType().equals("boolean")) {
-			// err
-		}
-		node.getBodyStmt().accept(this);
-		breakto.pop();
+		run(node);
 		return null;
 	}
 
@@ -305,22 +496,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ForStmt node) {
-		breakto.push(vst.getCurrScopeLevel());
-		if (node.getInitExpr() != null) {
-			node.getInitExpr().accept(this);
-		}
-		// loop++;
-		if (node.getPredExpr() != null) {
-			node.getPredExpr().accept(this);
-			if (!node.getPredExpr().getExprType().equals("boolean")) {
-				// err
-			}
-		}
-		if (node.getUpdateExpr() != null) {
-			node.getUpdateExpr().accept(this);
-		}
-		node.getBodyStmt().accept(this);
-		breakto.pop();
+		run(node);
 		return null;
 	}
 
@@ -346,13 +522,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BlockStmt node) {
-		vst.enterScope();
-		mst.enterScope();
-
-		node.getStmtList().accept(this);
-
-		vst.exitScope();
-		mst.exitScope();
+		run(node);
 		return null;
 	}
 
@@ -364,13 +534,12 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ReturnStmt node) {
-		String type = "void";
+		Type type = Type.VOID;
 		if (node.getExpr() != null) {
-			node.getExpr().accept(this);
-			type = node.getExpr().getExprType();
-			if (type.equals("void")) {
+			type = check(node.getExpr());
+			if (type == Type.VOID) {
 				// err
-				type = "Object";
+				type = object;
 			}
 		}
 		return type;
@@ -385,7 +554,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * */
 	public Object visit(ExprList node) {
 		for (Iterator it = node.getIterator(); it.hasNext();) {
-			((Expr) it.next()).accept(this);
+			check((Expr) it.next());
 		}
 		return null;
 	}
@@ -398,73 +567,51 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(DispatchExpr node) {
-	   	 String refType, name = node.getMethodName();
-	   	 ExprList alist = node.getActualList();
-	   	 FormalList flist = null;
-	   	 Iterator<ASTNode> ait, fit;
-
-	   			 
-	   	 node.getRefExpr().accept(this);
-	   	 refType = node.getRefExpr().getExprType();
-	   			 
-	   	 if (refType.contains("[]")) {
-	   				 
-	   		 refType = "Object"; // array types inherit from Object   		 
-	   	 }
-	   	 if (map.containsKey(refType)) {
-	   				
-	   		 tst = map.get(refType).getMethodSymbolTable();
-	   				 
-	   		 node.setExprType(((Method) tst.lookup(name)).getReturnType());
-	   				 
-	   	 } else {
-	   				
-	   		 // err?
-	   	 }
-	   			 
-	   	 if (refType.equals(ctn.getName())) {
-	   				 
-	   		 flist = ((Method) mst.lookup(name)).getFormalList();
-	   	 } else if (refType.equals(ptn.getName())) {
-	   				 
-	   		 tst = ptn.getMethodSymbolTable();
-	   		 flist = ((Method) tst.peek(name)).getFormalList();
-	   	 } else if (prim.contains(refType)) {
-	   				
-	   		 //err
-	   	 } else {
-	   				 
-	   		 tst = map.get(refType).getMethodSymbolTable();
-	   				
-	   		 flist = ((Method) tst.lookup(name)).getFormalList();
-	   				 
-	   	 }
-
-	   	 if (flist == null) {
-	   		 // prior error
-	   				
-	   	 } else if (flist.getSize() != alist.getSize()) {
-	   		 // err
-	   	 } else {
-	   			
-	   		 fit = flist.getIterator();
-	   		 ait = alist.getIterator();
-	   				
-	   		 for (Expr e; ait.hasNext();) {
-	   					 
-	   			 e = ((Expr) ait.next());
-	   			 e.accept(this);
-	   					 
-	   			 if (!e.getExprType().equals(((Formal) fit.next()).getType())
-	   				 || e.getExprType().equals("void")) {
-	   				 // err
-	   			 }
-	   		 }
-	   	 }
-	   			
-
-	   	 return null;
-	    }
+		Type refType, type = object;
+		String name = node.getMethodName();
+		ExprList alist = node.getActualList();
+		Method method = null;
+		Iterator<ASTNode> ait, fit;
+
+		refType = check(node.getRefExpr());
+
+		if (refType.isArray()) {
+			refType = object; // array types inherit from Object
+		}
+		use(refType);
+		if (refType.isClass() && refType.getLayout() != null) {
+			method = refType.getLayout().getMethod(name);
+		} else {
+			// err
+		}
+
+		if (method == null) {
+			// err?
+		} else {
+			type = types.get(method.getReturnType());
+		}
+
+		Type[] actuals = new Type[alist.getSize()];
+		ait = alist.getIterator();
+		for (int i = 0; ait.hasNext(); i++)
+			actuals[i] = check((Expr) ait.next());
+
+		if (method == null) {
+			// prior error
+		} else if (method.getFormalList().getSize() != alist.getSize()) {
+			// err
+		} else {
+			fit = method.getFormalList().getIterator();
+			for (Type t : actuals) {
+				if (t != types.get(((Formal) fit.next()).getType())
+					|| t == Type.VOID) {
+					// err
+				}
+			}
+		}
+
+		return typed(node, type == null ? object : type);
+	}
 
 	/**
 	 * Visit a new expression node
@@ -474,16 +621,14 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(NewExpr node) {
-		String type = node.getType();
-
-		
+		Type type = types.get(node.getType());
 
-		if (!map.containsKey(type)) {
-			type = "Object";
+		use(node.getType(), type);
+		if (type == null || !type.isClass()) {
+			type = object;
 			// err
 		}
-		node.setExprType(type);
-		return null;
+		return typed(node, type);
 	}
 
 	/**
@@ -494,24 +639,19 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(NewArrayExpr node) {
-		String type = node.getType();
-
-		
+		Type type = types.get(node.getType());
 
-		if (!map.containsKey(type)) {
-			type = "Object";
+		use(node.getType(), type);
+		if (type == null || type.getArrayType() == null) {
+			type = object;
 			// err
 		}
 
-		node.getSize().accept(this);
-		if (!node.getSize().getExprType().equals("int")) {
+		if (check(node.getSize()) != Type.INT) {
 			// err
 		}
 
-		
-
-		node.setExprType(node.getType() + "[]");
-		return null;
+		return typed(node, type.getArrayType());
 	}
 
 	/**
@@ -522,30 +662,23 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(InstanceofExpr node) {
-		String lhs, rhs = node.getType();
-
-		if (rhs.endsWith("[]")
-			&& !(map.contains(rhs.substring(0, rhs.length() - 3))
-				|| prim.contains(rhs.substring(0, rhs.length() - 3)))) {
-			rhs = "Object[]";
-			// arrerrarr
-		} else if (!map.contains(rhs)) {
-			rhs = "Object";
+		Type lhs, rhs = types.get(node.getType());
+
+		use(node.getType(), rhs);
+		if (rhs == null || !rhs.isReference()) {
+			rhs = node.getType().endsWith("[]") ? object.getArrayType()
+				: object;
 			// err
 		}
 
-		node.getExpr().accept(this);
-		lhs = node.getExpr().getExprType();
+		lhs = check(node.getExpr());
 
-		if (lhs.equals("void")) {
+		if (lhs == Type.VOID) {
 			// err
-		} else if (prim.contains(lhs)) {
+		} else if (lhs.isPrimitive()) {
 			// err
-		} else {
-			node.setExprType("boolean");
-			return "boolean";
 		}
-		return null;
+		return typed(node, Type.BOOLEAN);
 	}
 
 	/**
@@ -556,87 +689,55 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(CastExpr node) {
-	   	 boolean up, down, farr, tarr, gogogo;
-	   	 String from, to = node.getType(), ftmp = "", ttmp = "";
-	   	 ClassTreeNode tmp;
-	   	 up = down = farr = tarr = gogogo = false;
-
-	   			 
-	   	 if (prim.contains(to)) {
-	   		 to = "Object";
-	   		 // err
-	   			
-	   	 } else if (to.contains("[]")) {
-	   		 tarr = true;
-	   		 ttmp = to;
-	   		 to = to.substring(0, to.length() - 2);
-	   				   		 
-	   	 }
-	   	 if (!map.containsKey(to)) {
-	   		 to = "Object";
-	   		 if(!tarr) {
-	   			 //err
-	   					 
-	   		 }
-	   	 }
-
-	   	 node.getExpr().accept(this);
-	   	 from = node.getExpr().getExprType();
-	   			
-
-	   	 if (prim.contains(from)) {
-	   				
-	   		 // err
-	   	 } else if (from.contains("[]")) {
-	   		 farr = true;
-	   		 ftmp = from;
-	   		 from = from.substring(0, from.length() - 2);
-	   				  		 
-	   	 }
-	   	 if (!map.containsKey(from)) {
-	   		 if(!farr) {
-	   					
-	   			 // err, should be picked up by expr though?
-	   		 } else {
-	   			 gogogo = true;
-	   			 from = "Object";
-	   		 }
-	   	} else {
-	   		 gogogo = true;
-	   	 }
-	   	 if (gogogo) {
-	   		
-	   		 for (tmp = map.get(from); tmp != null && !tmp.getName().equals(to);
-	   			 tmp = tmp.getParent()) {
-	   				
-	   		 }
-	   		 // if from is child of to, upcast
-	   		 up = tmp == null ? false : true;
-	   				
-	   		 for (tmp = map.get(to); tmp != null && !tmp.getName().equals(from);
-	   			 tmp = tmp.getParent()) {
-	   					 
-	   		 }
-	   		 // if to is child of from, downcast :(
-	   		 down = tmp == null ? false : true;   				 
-	   				 
-
-	   		 to = tarr ? ttmp : to;
-	   		 from = farr ? ftmp : from;
-
-	   		 if (up || down) {
-	   				
-	   			 node.setExprType(to);
-	   			 node.setUpCast(up);
-	   		 } else {
-	   			 // err
-	   					
-	   		 }
-	   	 }
-	   	
-	   	 return to;
+		boolean up, down;
+		Type from, to = types.get(node.getType()), f, t;
+
+		if (to == null || !to.isReference()) {
+			to = object;
+			// err
+		}
+
+		from = check(node.getExpr());
+		use(node.getType(), to);
+		use(from);
+
+		if (!from.isReference()) {
+			// err, should be picked up by expr though?
+		} else {
+			// compare the classes (or array element classes)
+			f = castClass(from);
+			t = castClass(to);
+			// if from is child of to, upcast
+			up = from == Type.NULL || f.isSubclassOf(t);
+			// if to is child of from, downcast :(
+			down = t.isSubclassOf(f);
+
+			if (up || down) {
+				node.setUpCast(up);
+			} else {
+				// err
+			}
+		}
+
+		return typed(node, to);
 	}
 
+	/**
+	 * Look up the type of a field of this class or its parent, in the
+	 * class's flattened member tables
+	 * 
+	 * @param ref
+	 *            "this" or "super"
+	 * @param name
+	 *            name of the field
+	 * @return its type, or null if there is no such field
+	 */
+	private Type field(String ref, String name) {
+		Type type = ref.equals("this") ? ctype : ptype;
+		if (type == null || type.getLayout() == null)
+			return null;
+		return type.getLayout().getFieldType(name);
+	}
 
 	/**
 	 * Visit an assignment expression node
@@ -646,40 +747,29 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(AssignExpr node) {
-		String lhs, rhs, ref = node.getRefName(), name = node.getName();
-
-		
+		Type lhs, rhs;
+		String ref = node.getRefName(), name = node.getName();
 
-		node.getExpr().accept(this);
-		rhs = node.getExpr().getExprType();
+		rhs = check(node.getExpr());
 
 		if (ref != null) {
-			if (ref.equals("this")) {
-				lhs = (String) vst.lookup("this." + name);
-
-				
-
-			} else if (ref.equals("super")) {
-				lhs = (String) ptn.getVarSymbolTable().peek("this." + name);
-
-				
-
+			if (ref.equals("this") || ref.equals("super")) {
+				lhs = field(ref, name);
 			} else {
-				lhs = "";
+				lhs = null;
 				// err
 			}
 		} else {
-			lhs = (String) vst.lookup(name);
+			lhs = lookup(name);
 		}
 
-		if (rhs.equals("void")) {
+		if (rhs == Type.VOID) {
 			// err
-		} else if (rhs.equals(lhs)) {
+		} else if (rhs == lhs) {
 			// err
 		}
 
-		node.setExprType(rhs); // should be in else?
-		return rhs;
+		return typed(node, rhs); // should be in else?
 	}
 
 	/**
@@ -691,40 +781,61 @@ public class TypeCheckVisitor extends Visitor {
 	 * */
 	public Object visit(ArrayAssignExpr node) {
 		String name = node.getName();
-		String lhs, rhs, ref = node.getRefName();
+		String ref = node.getRefName();
+		Type lhs, rhs, index;
 
-		
-
-		node.getIndex().accept(this);
-		node.getExpr().accept(this);
-		rhs = node.getExpr().getExprType();
+		index = check(node.getIndex());
+		rhs = check(node.getExpr());
 
 		if (ref != null) {
-			if (ref.equals("this")) {
-				lhs = (String) vst.lookup("this." + name);
-
-			
-			} else if (ref.equals("super")) {
-				lhs = (String) ptn.getVarSymbolTable().peek(name);
-
-				
+			if (ref.equals("this") || ref.equals("super")) {
+				lhs = field(ref, name);
 			} else {
-				lhs = "";
+				lhs = null;
 				// err
 			}
 		} else {
-			lhs = (String) vst.lookup(name);
+			lhs = lookup(name);
 		}
 
-		if (rhs.equals("void")) {
+		if (rhs == Type.VOID) {
 			// err
-		} else if (rhs.equals(lhs)) {
+		} else if (rhs == lhs) {
 			// err
-		} else if (!node.getIndex().getExprType().equals("int")) {
+		} else if (index != Type.INT) {
 			// err
 		}
-		node.setExprType(rhs); // should be in else?
-		return rhs;
+		return typed(node, rhs); // should be in else?
+	}
+
+	/**
+	 * Type check the operands of a binary comparison or logical expression
+	 * 
+	 * @param node
+	 *            the expression
+	 * @return its type (boolean)
+	 */
+	private Type booleanBinary(BinaryExpr node) {
+		check(node.getLeftExpr());
+		check(node.getRightExpr());
+
+		return typed(node, Type.BOOLEAN);
+	}
+
+	/**
+	 * Type check the operands of a binary arithmetic expression
+	 * 
+	 * @param node
+	 *            the expression
+	 * @return its type
+	 */
+	private Type arithBinary(BinaryExpr node) {
+		Type lhs, rhs;
+
+		lhs = check(node.getLeftExpr());
+		rhs = check(node.getRightExpr());
+
+		return typed(node, lhs == rhs ? lhs : Type.INT);
 	}
 
 	/**
@@ -735,11 +846,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompEqExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -750,11 +857,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompNeExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -765,11 +868,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompLtExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -780,11 +879,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompLeqExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -795,11 +890,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompGtExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -810,11 +901,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryCompGeqExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -825,17 +912,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryArithPlusExpr node) {
-		String lhs, rhs;
-
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		lhs = node.getLeftExpr().getExprType();
-		rhs = node.getRightExpr().getExprType();
-		if (lhs.equals(rhs)) {
-			node.setExprType(lhs);
-		}
-		return null;
+		return arithBinary(node);
 	}
 
 	/**
@@ -846,17 +923,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryArithMinusExpr node) {
-		String lhs, rhs;
-
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		lhs = node.getLeftExpr().getExprType();
-		rhs = node.getRightExpr().getExprType();
-		if (lhs.equals(rhs)) {
-			node.setExprType(lhs);
-		}
-		return null;
+		return arithBinary(node);
 	}
 
 	/**
@@ -867,18 +934,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryArithTimesExpr node) {
-		String lhs, rhs;
-
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		lhs = node.getLeftExpr().getExprType();
-		rhs = node.getRightExpr().getExprType();
-
-		if (lhs.equals(rhs)) {
-			node.setExprType(lhs);
-		}
-		return null;
+		return arithBinary(node);
 	}
 
 	/**
@@ -889,17 +945,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryArithDivideExpr node) {
-		String lhs, rhs;
-
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		lhs = node.getLeftExpr().getExprType();
-		rhs = node.getRightExpr().getExprType();
-		if (lhs.equals(rhs)) {
-			node.setExprType(lhs);
-		}
-		return null;
+		return arithBinary(node);
 	}
 
 	/**
@@ -910,17 +956,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryArithModulusExpr node) {
-		String lhs, rhs;
-
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		lhs = node.getLeftExpr().getExprType();
-		rhs = node.getRightExpr().getExprType();
-		if (lhs.equals(rhs)) {
-			node.setExprType(lhs);
-		}
-		return null;
+		return arithBinary(node);
 	}
 
 	/**
@@ -931,11 +967,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryLogicAndExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -946,11 +978,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(BinaryLogicOrExpr node) {
-		node.getLeftExpr().accept(this);
-		node.getRightExpr().accept(this);
-
-		node.setExprType("boolean");
-		return null;
+		return booleanBinary(node);
 	}
 
 	/**
@@ -961,16 +989,12 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(UnaryNegExpr node) {
-	   	 node.getExpr().accept(this);
-
-	   	 if (!node.getExpr().getExprType().equals("int")) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "unaryNeg must be int, fool");
-	   	 } else {
-	   		 node.setExprType(node.getExpr().getExprType());
-	   	 }
-	   	 return null;
-	    }
+		if (check(node.getExpr()) != Type.INT) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"unaryNeg must be int, fool");
+		}
+		return typed(node, Type.INT);
+	}
 
 	/**
 	 * Visit a unary NOT expression node
@@ -980,24 +1004,11 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(UnaryNotExpr node) {
-	   	 node.getExpr().accept(this);
-
-	   	 
-
-	   	 if (!node.getExpr().getExprType().equals("boolean")) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "\tunaryNot must be boolean, fool");
-
-	   		
-	   	 } else {
-
-	   		
-
-	   		 node.setExprType(node.getExpr().getExprType());
-	   		 
-	   		    
-	   	 }
-	   	 return null;
+		if (check(node.getExpr()) != Type.BOOLEAN) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"\tunaryNot must be boolean, fool");
+		}
+		return typed(node, Type.BOOLEAN);
 	}
 
 	/**
@@ -1008,19 +1019,17 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(UnaryIncrExpr node) {
-	   	 node.getExpr().accept(this);
-
-	   	 if (!(node.getExpr() instanceof VarExpr
-	   		 || node.getExpr() instanceof ArrayExpr)) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "++ should prolly be used on var or arr");
-	   		 
-	   	 } else if (!node.getExpr().getExprType().equals("int")) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "++ needs int, fool");
-	   	 } else {
-	   		 node.setExprType(node.getExpr().getExprType());
-	   	 }   	 return null;
+		Type type = check(node.getExpr());
+
+		if (!(node.getExpr() instanceof VarExpr
+			|| node.getExpr() instanceof ArrayExpr)) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"++ should prolly be used on var or arr");
+		} else if (type != Type.INT) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"++ needs int, fool");
+		}
+		return typed(node, Type.INT);
 	}
 
 	/**
@@ -1031,91 +1040,81 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(UnaryDecrExpr node) {
-	   	 node.getExpr().accept(this);
-
-	   	 if (!(node.getExpr() instanceof VarExpr
-	   		 || node.getExpr() instanceof ArrayExpr)) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "-- should prolly be used on var or arr");
-	   	 } else if (!node.getExpr().getExprType().equals("int")) {
-	   		 err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
-	   			 "-- needs int, fool");
-	   	 } else {
-	   		 node.setExprType(node.getExpr().getExprType());
-	   	 }
-	   	 return null;
+		Type type = check(node.getExpr());
+
+		if (!(node.getExpr() instanceof VarExpr
+			|| node.getExpr() instanceof ArrayExpr)) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"-- should prolly be used on var or arr");
+		} else if (type != Type.INT) {
+			err.register(err.SEMANT_ERROR, fname, node.getLineNum(),
+				"-- needs int, fool");
+		}
+		return typed(node, Type.INT);
 	}
 
 	/**
-	 * Visit a variable expression node
+	 * Find the type of a variable, or of the field of a variable
 	 * 
-	 * @param node
-	 *            the variable expression node
-	 * @return result of the visit
-	 * */
-	public Object visit(VarExpr node) {
-		int ln = node.getLineNum();
-		String refType, refName, type, name = node.getName();
-		type = null;
-
-		
+	 * @param ln
+	 *            line number of the reference
+	 * @param ref
+	 *            the reference expression, or null
+	 * @param name
+	 *            name of the variable or field
+	 * @return its type (Object after an error)
+	 */
+	private Type varType(int ln, Expr ref, String name) {
+		Type refType, type = null;
+		String refName;
 
-		if (node.getRef() != null) {
-			node.getRef().accept(this);
-			refName = (node.getRef() instanceof VarExpr) ? 
-					((VarExpr) node.getRef()).getName() : node.getName();
-			refType = node.getRef().getExprType();
+		if (ref != null) {
+			refType = check(ref);
+			refName = (ref instanceof VarExpr) ? ((VarExpr) ref).getName()
+				: name;
 
-			if (refType.contains("[]")) {
-				if (name.equals("length")){ // array.length
-					type = "int";
+			if (refType.isArray()) {
+				if (name.equals("length")) { // array.length
+					type = Type.INT;
 				} else {
 					err.register(err.SEMANT_ERROR, fname, ln,
 						"array ref type may only access .length");
 				}
-			} else if (refName.equals("super")) {
-				//cast to string
-				type = (String) ptn.getVarSymbolTable().peek("this." + name);
-			} else if (refName.equals("this")) {
-				type = (String) vst.lookup("this." + name);
+			} else if (refName.equals("super") || refName.equals("this")) {
+				type = field(refName, name);
 			} else {
 				err.register(err.SEMANT_ERROR, fname, ln,
-						"varExpr: invalid refExpr");
+					"varExpr: invalid refExpr");
 			}
-
-			
-
 		} else if (name.equals("super")) {
-			
-
-			type = ptn.getName();
+			type = ptype;
 		} else if (name.equals("this")) {
-			
-
-			type = ctn.getName();
+			type = ctype;
 		} else if (name.equals("null")) {
-			
-
-			type = "null";
+			type = Type.NULL;
 		} else {
-			
-
-			type = vst.lookup(name).toString();
+			type = lookup(name);
 		}
 
-		if(type == null) {
-			
-
-			type = "Object";
+		if (type == null) {
+			type = object;
 			//err?
 		}
-
-		
-
-		node.setExprType(type);
 		return type;
 	}
 
+	/**
+	 * Visit a variable expression node
+	 * 
+	 * @param node
+	 *            the variable expression node
+	 * @return result of the visit
+	 * */
+	public Object visit(VarExpr node) {
+		return typed(node, varType(node.getLineNum(), node.getRef(),
+			node.getName()));
+	}
+
 	/**
 	 * Visit an array expression node
 	 * 
@@ -1124,73 +1123,16 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ArrayExpr node) {
-	   	 int ln = node.getLineNum();
-	   	 String refType, refName, type = null, name = node.getName();
-
-	  
-
-	   	 if (node.getRef() != null) {
-	   		 node.getRef().accept(this);
-	   		 refName = ((VarExpr) node.getRef()).getName();
-	   		 refType = node.getRef().getExprType();
-
-	   		 if (refType.contains("[]")) { // not possible?
-	   			 if (name.equals("length")){ // array.length
-	   				 type = "int";
-	   			 } else {
-	   				 err.register(err.SEMANT_ERROR, fname, ln,
-	   					 "array ref type may only access .length");
-	   			 }
-	   		 } else if (refName.equals("super")) {
-	   			 type = (String) ptn.getVarSymbolTable().peek("this." + name);
-	   		 } else if (refName.equals("this")) {
-	   			 type = (String) vst.lookup("this." + name);
-	   		 } else {
-	   			 err.register(err.SEMANT_ERROR, fname, ln,
-	   				 "varExpr: invalid refExpr");
-	   		 }
-
-	   		
-
-	   	 } else if (name.equals("super")) {
-	   		
-
-	   		 type = ptn.getName();
-	   	 } else if (name.equals("this")) {
-	   		
-
-	   		 type = ctn.getName();
-	   	 } else if (name.equals("null")) {
-	   		
-
-	   		 type = "null";
-	   	 } else {
-	   		 type = vst.lookup(name).toString();
-
-	   		
-	   	 }
-
-	   	 if(type == null) {
-	   		
-
-	   		 type = "Object";
-	   		 //err?
-	   	 }
-
-	   	
-
-	   	 node.getIndex().accept(this);
-	   	 if (!node.getIndex().getExprType().equals("int")) {
-	   		 err.register(err.SEMANT_ERROR, fname, ln,
-	   			 "varExpr: index must be int " + node.getIndex().getExprType());
-	   	 }
-
-	   	 type = type.contains("[]")? type.substring(0, type.length()-2) : type;
-	   	 node.setExprType(type);
+		int ln = node.getLineNum();
+		Type type = varType(ln, node.getRef(), node.getName());
+		Type index = check(node.getIndex());
 
-	   	
+		if (index != Type.INT) {
+			err.register(err.SEMANT_ERROR, fname, ln,
+				"varExpr: index must be int " + index);
+		}
 
-	   	 return null;
+		return typed(node, type.isArray() ? type.getElementType() : type);
 	}
 
 	/**
@@ -1201,10 +1143,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ConstIntExpr node) {
-		
-
-		node.setExprType("int");
-		return null;
+		return typed(node, Type.INT);
 	}
 
 	/**
@@ -1215,10 +1154,7 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ConstBooleanExpr node) {
-		
-
-		node.setExprType("boolean");
-		return null;
+		return typed(node, Type.BOOLEAN);
 	}
 
 	/**
@@ -1229,9 +1165,6 @@ public class TypeCheckVisitor extends Visitor {
 	 * @return result of the visit
 	 * */
 	public Object visit(ConstStringExpr node) {
-		
-
-		node.setExprType("String");
-		return null;
+		return typed(node, string);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+package util;
+
+import java.util.*;
+
+import ast.ASTNode;
+import ast.Formal;
+import ast.Method;
+
+/**
+ * The flattened member tables of a class: every field and method the class
+ * declares or inherits, each in a numbered slot. A class starts with a copy
+ * of its parent's tables, so inherited members keep their parent's slots;
+ * an overriding method takes over the slot of the method it overrides,
+ * and new members get new slots at the end (a field that hides an
+ * inherited one gets a new slot, and its name then refers to the new
+ * slot). So finding a member of a class by name is a single hash probe,
+ * however deep the class is in the hierarchy, rather than a walk up the
+ * scopes of its symbol tables.
+ *
+ * A layout is built by adding the members of its class (see
+ * ClassEnvVisitor), after the layout of the parent class is complete, and
+ * is read-only once its class is done.
+ * */
+public class ClassLayout {
+    /** The class type, and the layout of its parent class (or null) */
+    private Type owner;
+    private ClassLayout parent;
+
+    /** Types of the program, for method descriptors */
+    private TypeRegistry types;
+
+    /** Methods, their JVM descriptors, and slots by (canonical) name */
+    private ArrayList<Method> methods;
+    private ArrayList<String> descriptors;
+    private HashMap<String, Integer> methodSlots;
+
+    /** Field names, types, the classes declaring them, and slots by name */
+    private ArrayList<String> fieldNames;
+    private ArrayList<Type> fieldTypes;
+    private ArrayList<Type> fieldOwners;
+    private HashMap<String, Integer> fieldSlots;
+
+    /**
+     * ClassLayout constructor: starts the layout of a class with the
+     * members of its parent, and makes it the layout of the class's type
+     *
+     * @param type
+     *            the class type
+     * @param types
+     *            types of the program
+     * @throws IllegalStateException
+     *             if the class has a parent whose layout is not built yet
+     * */
+    public ClassLayout(Type type, TypeRegistry types) {
+	ClassTreeNode ptn = type.getClassTreeNode().getParent();
+	Type ptype = ptn == null ? null : types.get(ptn.getName());
+	if (ptn != null && (ptype == null || ptype.layout == null))
+	    throw new IllegalStateException("layout of " + type.getName()
+		    + " built before that of its parent " + ptn.getName());
+	this.parent = ptype == null ? null : ptype.layout;
+	this.types = types;
+	if (parent == null) {
+	    methods = new ArrayList<Method>();
+	    descriptors = new ArrayList<String>();
+	    methodSlots = new HashMap<String, Integer>();
+	    fieldNames = new ArrayList<String>();
+	    fieldTypes = new ArrayList<Type>();
+	    fieldOwners = new ArrayList<Type>();
+	    fieldSlots = new HashMap<String, Integer>();
+	} else {
+	    methods = new ArrayList<Method>(parent.methods);
+	    descriptors = new ArrayList<String>(parent.descriptors);
+	    methodSlots = new HashMap<String, Integer>(parent.methodSlots);
+	    fieldNames = new ArrayList<String>(parent.fieldNames);
+	    fieldTypes = new ArrayList<Type>(parent.fieldTypes);
+	    fieldOwners = new ArrayList<Type>(parent.fieldOwners);
+	    fieldSlots = new HashMap<String, Integer>(parent.fieldSlots);
+	}
+	this.owner = type;
+	type.layout = this;
+    }
+
+    /**
+     * Add a field declared by the class
+     *
+     * @param name
+     *            name of the field
+     * @param type
+     *            its type
+     * @return its slot
+     * */
+    public int addField(String name, Type type) {
+	int slot = fieldTypes.size();
+	fieldNames.add(name);
+	fieldTypes.add(type);
+	fieldOwners.add(owner);
+	fieldSlots.put(name, slot);
+	return slot;
+    }
+
+    /**
+     * Add a method declared by the class
+     *
+     * @param name
+     *            name of the method
+     * @param method
+     *            the method
+     * @return its slot (the slot of the method it overrides, if any)
+     * */
+    public int addMethod(String name, Method method) {
+	Integer slot = methodSlots.get(name);
+	String descriptor = descriptor(method);
+	if (slot != null) {
+	    methods.set(slot, method);
+	    descriptors.set(slot, descriptor);
+	    return slot;
+	}
+	methodSlots.put(name, methods.size());
+	methods.add(method);
+	descriptors.add(descriptor);
+	return methods.size() - 1;
+    }
+
+    /**
+     * Get the JVM descriptor of a method
+     * */
+    private String descriptor(Method method) {
+	StringBuilder sb = new StringBuilder("(");
+	for (Iterator<ASTNode> it = method.getFormalList().getIterator(); it
+		.hasNext();)
+	    sb.append(descriptor(((Formal) it.next()).getType()));
+	return sb.append(')').append(descriptor(method.getReturnType()))
+		.toString();
+    }
+
+    /**
+     * Get the JVM descriptor of a type name (that of Object if there is no
+     * such type, which was reported when the class was checked)
+     * */
+    private String descriptor(String name) {
+	Type t = types.get(name);
+	return t == null ? types.getObject().getDescriptor() : t
+		.getDescriptor();
+    }
+
+    /**
+     * Get the layout of the parent class
+     *
+     * @return the parent's layout, or null for Object (or a class that
+     *         could not be linked)
+     * */
+    public ClassLayout getParent() {
+	return parent;
+    }
+
+    /**
+     * Look up a method of the class
+     *
+     * @param name
+     *            name of the method
+     * @return the method (declared or inherited), or null if there is none
+     * */
+    public Method getMethod(String name) {
+	Integer slot = methodSlots.get(name);
+	return slot == null ? null : methods.get(slot);
+    }
+
+    /**
+     * Get the slot of a method
+     *
+     * @param name
+     *            name of the method
+     * @return its slot, or -1 if there is no such method
+     * */
+    public int getMethodSlot(String name) {
+	Integer slot = methodSlots.get(name);
+	return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Get the method in a slot
+     *
+     * @param slot
+     *            the slot
+     * @return the method
+     * */
+    public Method getMethod(int slot) {
+	return methods.get(slot);
+    }
+
+    /**
+     * Get the JVM descriptor of the method in a slot
+     *
+     * @param slot
+     *            the slot
+     * @return the descriptor, for example "(ILFoo;)Z"
+     * */
+    public String getMethodDescriptor(int slot) {
+	return descriptors.get(slot);
+    }
+
+    /**
+     * Get the number of method slots
+     *
+     * @return the number of methods, declared and inherited
+     * */
+    public int getMethodCount() {
+	return methods.size();
+    }
+
+    /**
+     * Get the slot of a field
+     *
+     * @param name
+     *            name of the field
+     * @return its slot, or -1 if there is no such field
+     * */
+    public int getFieldSlot(String name) {
+	Integer slot = fieldSlots.get(name);
+	return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Look up the type of a field of the class
+     *
+     * @param name
+     *            name of the field
+     * @return its type (declared or inherited), or null if there is none
+     * */
+    public Type getFieldType(String name) {
+	Integer slot = fieldSlots.get(name);
+	return slot == null ? null : fieldTypes.get(slot);
+    }
+
+    /**
+     * Get the name of the field in a slot
+     *
+     * @param slot
+     *            the slot
+     * @return its name
+     * */
+    public String getFieldName(int slot) {
+	return fieldNames.get(slot);
+    }
+
+    /**
+     * Get the type of the field in a slot
+     *
+     * @param slot
+     *            the slot
+     * @return its type
+     * */
+    public Type getFieldType(int slot) {
+	return fieldTypes.get(slot);
+    }
+
+    /**
+     * Get the class declaring the field in a slot
+     *
+     * @param slot
+     *            the slot
+     * @return the class type
+     * */
+    public Type getFieldOwner(int slot) {
+	return fieldOwners.get(slot);
+    }
+
+    /**
+     * Get the number of field slots
+     *
+     * @return the number of fields, declared and inherited
+     * */
+    public int getFieldCount() {
+	return fieldTypes.size();
+    }
+}
@@ -0,0 +1,98 @@
+package util;
+
+import java.util.ArrayList;
+
+/**
+ * An <tt>ErrorHandler</tt> that only records errors. Each per-file parser
+ * (and its token manager) reports into its own DeferredErrorHandler so that
+ * files can be scanned and parsed on different threads; the driver then
+ * replays the recorded errors into the real handler in command-line order.
+ * Parallel type checking records the errors of each class the same way.
+ * */
+public class DeferredErrorHandler extends ErrorHandler {
+    /** A recorded error */
+    private static class Entry {
+	int type, lineNum;
+	String filename, message;
+
+	Entry(int type, String filename, int lineNum, String message) {
+	    this.type = type;
+	    this.filename = filename;
+	    this.lineNum = lineNum;
+	    this.message = message;
+	}
+    }
+
+    /** Recorded errors, in the order they were registered */
+    private ArrayList<Entry> errors = new ArrayList<Entry>();
+
+    /**
+     * Record an error
+     *
+     * @param type
+     *            type of error (LEX_ERROR, PARSE_ERROR, ...)
+     * @param filename
+     *            name of the file where the error occurred
+     * @param lineNum
+     *            line number of the error
+     * @param message
+     *            error message
+     * */
+    public void register(int type, String filename, int lineNum,
+	    String message) {
+	errors.add(new Entry(type, filename, lineNum, message));
+    }
+
+    /**
+     * Record an error that is not tied to a source location
+     *
+     * @param type
+     *            type of error (LEX_ERROR, PARSE_ERROR, ...)
+     * @param message
+     *            error message
+     * */
+    public void register(int type, String message) {
+	errors.add(new Entry(type, null, -1, message));
+    }
+
+    /**
+     * Get the number of recorded errors
+     *
+     * @return the number of errors registered so far
+     * */
+    public int size() {
+	return errors.size();
+    }
+
+    /**
+     * Copy the recorded errors, moved to other lines (for the errors of a
+     * class whose declaration moved)
+     *
+     * @param delta
+     *            number of lines to add to the line number of each error
+     *            tied to a source location
+     * @return a handler holding the moved errors
+     * */
+    public DeferredErrorHandler shifted(int delta) {
+	DeferredErrorHandler result = new DeferredErrorHandler();
+	for (Entry e : errors)
+	    result.errors.add(e.filename == null ? e : new Entry(e.type,
+		    e.filename, e.lineNum + delta, e.message));
+	return result;
+    }
+
+    /**
+     * Register every recorded error, in order, with another handler
+     *
+     * @param target
+     *            the handler that reports errors
+     * */
+    public void replay(ErrorHandler target) {
+	for (Entry e : errors) {
+	    if (e.filename == null)
+		target.register(e.type, e.message);
+	    else
+		target.register(e.type, e.filename, e.lineNum, e.message);
+	}
+    }
+}
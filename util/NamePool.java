@@ -0,0 +1,108 @@
+package util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiler-wide pool of identifier and type names. The scanner interns every
+ * identifier, so each distinct name is a single canonical <tt>String</tt> from
+ * the AST on down and has a dense integer id. A canonical name caches its hash
+ * code and compares equal to itself by reference, so a hash lookup of an AST
+ * name compares its characters only with a different name of the same hash
+ * code. Lookups that go through the id (see NameTable) compare ints only.
+ *
+ * The pool is shared by every thread (files may be scanned in parallel); ids
+ * are never reused, so the pool only grows over the life of the JVM. Tables
+ * built per program must therefore be sized from the program's own names
+ * (as NameTable is), not from <tt>size()</tt>.
+ * */
+public class NamePool {
+    /** Names that the compiler itself refers to, interned up front so that
+     * the literals in the compiler and the names in the AST are the same
+     * objects */
+    private static final String[] PREDEFINED = { "Object", "String",
+	    "TextIO", "Sys", "Main", "main", "int", "boolean", "void", "this",
+	    "super", "null", "length", "clone", "equals", "substring",
+	    "concat", "readStdin", "readFile", "writeStdout", "writeStderr",
+	    "writeFile", "getString", "getInt", "putString", "putInt", "exit" };
+
+    /** Maps each name to its id */
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /** Canonical names, indexed by id (grown under the pool lock) */
+    private static volatile String[] names = new String[1024];
+
+    /** Number of names in the pool */
+    private static int size = 0;
+
+    static {
+	for (String s : PREDEFINED)
+	    intern(s);
+    }
+
+    /**
+     * Get the canonical instance of a name, adding it to the pool if needed
+     *
+     * @param name
+     *            the name
+     * @return the canonical name (equal to name)
+     * */
+    public static String intern(String name) {
+	Integer id = ids.get(name);
+	if (id == null)
+	    id = add(name);
+	return names[id];
+    }
+
+    /**
+     * Get the id of a name
+     *
+     * @param name
+     *            the name (should be canonical, for a cheap lookup)
+     * @return the dense id of the name, or -1 if it is not in the pool
+     * */
+    public static int id(String name) {
+	Integer id = ids.get(name);
+	return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the name with a given id
+     *
+     * @param id
+     *            the id
+     * @return the canonical name
+     * */
+    public static String name(int id) {
+	return names[id];
+    }
+
+    /**
+     * Get an upper bound on the ids handed out so far, for sizing tables
+     * indexed by id
+     *
+     * @return the number of names in the pool
+     * */
+    public static synchronized int size() {
+	return size;
+    }
+
+    /**
+     * Add a name to the pool
+     *
+     * @return the id of the name
+     * */
+    private static synchronized int add(String name) {
+	Integer id = ids.get(name);
+	if (id != null)
+	    return id; // added by another thread in the meantime
+	if (size == names.length) {
+	    String[] tmp = new String[2 * size];
+	    System.arraycopy(names, 0, tmp, 0, size);
+	    names = tmp;
+	}
+	names[size] = name;
+	// publish the id only once the name is in the table
+	ids.put(name, size);
+	return size++;
+    }
+}
@@ -0,0 +1,105 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed set of entries keyed by name, for the read-only lookup tables of
+ * a program (types and classes by name). Entries are keyed on the NamePool
+ * id of the name, renumbered densely for the program: the names put in the
+ * table get the numbers 0, 1, 2, ... in order, and the values are stored in
+ * an array indexed by that number. The id is mapped to its number through
+ * open addressing over a power of two number of slots, at most half of them
+ * full, so probing compares ints, never characters, and the table's size
+ * depends only on the program's own names, not on everything the compiler
+ * has interned.
+ * */
+public class NameTable<V> {
+    /** NamePool ids of the names, -1 in free slots */
+    private int[] ids;
+
+    /** Dense number of the name in each used slot */
+    private int[] numbers;
+
+    /** Values, indexed by dense number */
+    private Object[] values;
+
+    /** Number of entries */
+    private int size = 0;
+
+    /**
+     * NameTable constructor
+     *
+     * @param expected
+     *            number of entries that will be added
+     * */
+    public NameTable(int expected) {
+	int n = 2;
+	while (n < 2 * expected)
+	    n *= 2;
+	ids = new int[n];
+	Arrays.fill(ids, -1);
+	numbers = new int[n];
+	values = new Object[Math.max(expected, 1)];
+    }
+
+    /**
+     * Add an entry, replacing any other entry with the same name. Must not
+     * be called more times (for different names) than the table was sized
+     * for.
+     *
+     * @param name
+     *            the name (interned if it is not in the NamePool yet)
+     * @param value
+     *            the value
+     * */
+    public void put(String name, V value) {
+	int id = NamePool.id(NamePool.intern(name));
+	int i = slot(id);
+	if (ids[i] < 0) {
+	    if (size == values.length)
+		throw new IllegalStateException("name table is full");
+	    ids[i] = id;
+	    numbers[i] = size++;
+	}
+	values[numbers[i]] = value;
+    }
+
+    /**
+     * Look up an entry
+     *
+     * @param name
+     *            the name; lookups are cheapest if it is canonical (see
+     *            NamePool)
+     * @return the value, or null if there is no entry for name
+     * */
+    @SuppressWarnings("unchecked")
+    public V get(String name) {
+	int n = number(name);
+	return n < 0 ? null : (V) values[n];
+    }
+
+    /**
+     * Get the dense number of a name
+     *
+     * @return its number, or -1 if it has no entry
+     * */
+    private int number(String name) {
+	int id = NamePool.id(name);
+	if (id < 0)
+	    return -1;
+	int i = slot(id);
+	return ids[i] < 0 ? -1 : numbers[i];
+    }
+
+    /**
+     * Find the slot of an id, or the free slot where it would go
+     * */
+    private int slot(int id) {
+	int mask = ids.length - 1;
+	int h = id * 0x9E3779B9; // spread consecutive ids over the slots
+	int i = (h ^ (h >>> 16)) & mask;
+	while (ids[i] >= 0 && ids[i] != id)
+	    i = (i + 1) & mask;
+	return i;
+    }
+}
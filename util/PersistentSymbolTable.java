@@ -0,0 +1,222 @@
+package util;
+
+/**
+ * An immutable symbol table with nested scopes. Each operation that
+ * changes the table (add(), enterScope(), exitScope()) returns a new table
+ * and leaves the old one as it was, sharing all but O(log n) of its
+ * structure with the new one, so a table is its own snapshot: it can be
+ * kept, or handed to another thread or phase, without copying or locking.
+ *
+ * The bindings visible in a scope are kept in a hash array mapped trie (a
+ * tree of 32-way nodes indexed by successive 5-bit digits of the hash of
+ * the name, each node holding only the entries present), together with a
+ * second trie of the bindings of the innermost scope only, for peek().
+ * Entering a scope starts a new, empty innermost trie; exiting one returns
+ * the enclosing table. Names should be canonical (see NamePool), as their
+ * hash codes are then cached.
+ *
+ * It offers the lookups of SymbolTable, so code can move from a mutable
+ * table to this one by assigning the result of each update.
+ * */
+public final class PersistentSymbolTable {
+    /** A table with a single, empty scope */
+    public static final PersistentSymbolTable EMPTY = new PersistentSymbolTable(
+	    Node.EMPTY, Node.EMPTY, null, 0);
+
+    /** Every binding visible in this scope */
+    private final Node all;
+
+    /** The bindings of this (innermost) scope */
+    private final Node scope;
+
+    /** The table of the enclosing scope, or null */
+    private final PersistentSymbolTable parent;
+
+    /** Nesting level of this scope (0 for the outermost) */
+    private final int level;
+
+    private PersistentSymbolTable(Node all, Node scope,
+	    PersistentSymbolTable parent, int level) {
+	this.all = all;
+	this.scope = scope;
+	this.parent = parent;
+	this.level = level;
+    }
+
+    /**
+     * Add a binding to the innermost scope
+     *
+     * @param name
+     *            the name
+     * @param value
+     *            its value (not null)
+     * @return the table with the binding added (replacing any binding of
+     *         the name in the innermost scope, and hiding any in enclosing
+     *         scopes)
+     * */
+    public PersistentSymbolTable add(String name, Object value) {
+	int hash = name.hashCode();
+	return new PersistentSymbolTable(all.put(name, hash, value, 0),
+		scope.put(name, hash, value, 0), parent, level);
+    }
+
+    /**
+     * Look up a name in every scope, innermost first
+     *
+     * @param name
+     *            the name
+     * @return its value, or null if it is not bound
+     * */
+    public Object lookup(String name) {
+	return all.get(name, name.hashCode());
+    }
+
+    /**
+     * Look up a name in the innermost scope only
+     *
+     * @param name
+     *            the name
+     * @return its value, or null if it is not bound in this scope
+     * */
+    public Object peek(String name) {
+	return scope.get(name, name.hashCode());
+    }
+
+    /**
+     * Start a new, empty innermost scope
+     *
+     * @return the table with the new scope
+     * */
+    public PersistentSymbolTable enterScope() {
+	return new PersistentSymbolTable(all, Node.EMPTY, this, level + 1);
+    }
+
+    /**
+     * Leave the innermost scope, dropping its bindings
+     *
+     * @return the table of the enclosing scope
+     * */
+    public PersistentSymbolTable exitScope() {
+	if (parent == null)
+	    throw new IllegalStateException("exitScope() on outermost scope");
+	return parent;
+    }
+
+    /**
+     * Get the nesting level of the innermost scope
+     *
+     * @return 0 for the outermost scope, 1 for the scope it encloses, etc.
+     * */
+    public int getCurrScopeLevel() {
+	return level;
+    }
+
+    /**
+     * A trie node. A node at depth d holds, for each value of the 5-bit
+     * digit d of the hash that is present (one bit of the bitmap each, in
+     * order), either a name and its value or (with a null name) a child
+     * node. Names whose hashes are equal in every digit end in a collision
+     * node, a plain list of names and values.
+     * */
+    private static final class Node {
+	static final Node EMPTY = new Node(0, new Object[0], false);
+
+	final int bitmap;
+	final Object[] array; // name, value (or null, child) pairs
+	final boolean collision;
+
+	Node(int bitmap, Object[] array, boolean collision) {
+	    this.bitmap = bitmap;
+	    this.array = array;
+	    this.collision = collision;
+	}
+
+	Object get(String name, int hash) {
+	    Node node = this;
+	    for (int shift = 0;; shift += 5) {
+		if (node.collision) {
+		    for (int i = 0; i < node.array.length; i += 2) {
+			if (name.equals(node.array[i]))
+			    return node.array[i + 1];
+		    }
+		    return null;
+		}
+		int bit = 1 << ((hash >>> shift) & 31);
+		if ((node.bitmap & bit) == 0)
+		    return null;
+		int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+		Object key = node.array[i];
+		if (key == null)
+		    node = (Node) node.array[i + 1];
+		else
+		    return name.equals(key) ? node.array[i + 1] : null;
+	    }
+	}
+
+	Node put(String name, int hash, Object value, int shift) {
+	    if (collision) {
+		for (int i = 0; i < array.length; i += 2) {
+		    if (name.equals(array[i]))
+			return new Node(0, with(i + 1, value), true);
+		}
+		Object[] a = new Object[array.length + 2];
+		System.arraycopy(array, 0, a, 0, array.length);
+		a[array.length] = name;
+		a[array.length + 1] = value;
+		return new Node(0, a, true);
+	    }
+
+	    int bit = 1 << ((hash >>> shift) & 31);
+	    int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+	    if ((bitmap & bit) == 0) {
+		Object[] a = new Object[array.length + 2];
+		System.arraycopy(array, 0, a, 0, i);
+		a[i] = name;
+		a[i + 1] = value;
+		System.arraycopy(array, i, a, i + 2, array.length - i);
+		return new Node(bitmap | bit, a, false);
+	    }
+
+	    Object key = array[i];
+	    if (key == null) {
+		Node child = (Node) array[i + 1];
+		return new Node(bitmap, with(i + 1, child.put(name, hash,
+			value, shift + 5)), false);
+	    }
+	    if (name.equals(key))
+		return new Node(bitmap, with(i + 1, value), false);
+
+	    // two names share this digit: push both down a level
+	    Node child = pair((String) key, key.hashCode(), array[i + 1],
+		    name, hash, value, shift + 5);
+	    Object[] a = with(i + 1, child);
+	    a[i] = null;
+	    return new Node(bitmap, a, false);
+	}
+
+	/**
+	 * Copy of the array with one element replaced
+	 * */
+	private Object[] with(int i, Object x) {
+	    Object[] a = array.clone();
+	    a[i] = x;
+	    return a;
+	}
+
+	/**
+	 * A node holding two names that agree in the digits above shift
+	 * */
+	private static Node pair(String k1, int h1, Object v1, String k2,
+		int h2, Object v2, int shift) {
+	    if (shift >= 32)
+		return new Node(0, new Object[] { k1, v1, k2, v2 }, true);
+	    int d1 = (h1 >>> shift) & 31, d2 = (h2 >>> shift) & 31;
+	    if (d1 == d2)
+		return new Node(1 << d1, new Object[] { null,
+			pair(k1, h1, v1, k2, h2, v2, shift + 5) }, false);
+	    Object[] a = d1 < d2 ? new Object[] { k1, v1, k2, v2 }
+		    : new Object[] { k2, v2, k1, v1 };
+	    return new Node((1 << d1) | (1 << d2), a, false);
+	}
+    }
+}
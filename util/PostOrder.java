@@ -0,0 +1,137 @@
+package util;
+
+import java.util.*;
+
+import ast.*;
+
+/**
+ * Lists the nodes of an expression tree in post-order (each node after its
+ * children, children in evaluation order), using an explicit stack rather
+ * than recursion, so that expressions nested tens of thousands deep (as
+ * machine-generated code may have) can be handled on an ordinary thread
+ * stack.
+ *
+ * A visitor whose expression visits reach their children only through
+ * one method (TypeCheckVisitor.check(), CodeGenVisitor.gen()) can then
+ * handle a deep expression without recursing: it visits the nodes in this
+ * order, recording the result of each, and the visit of a node finds the
+ * results of its children already recorded.
+ * */
+public class PostOrder {
+    /** Nesting depth up to which visitors may simply recurse */
+    public static final int MAX_RECURSION = 200;
+
+    private PostOrder() {
+    }
+
+    /**
+     * List the nodes of an expression in post-order
+     *
+     * @param root
+     *            the expression
+     * @return its nodes, root last
+     * */
+    public static ArrayList<Expr> of(Expr root) {
+	// list the nodes in pre-order with the children of each node taken
+	// last to first; that order, reversed, is the post-order
+	ArrayList<Expr> result = new ArrayList<Expr>();
+	ArrayDeque<Expr> stack = new ArrayDeque<Expr>();
+	stack.push(root);
+	while (!stack.isEmpty()) {
+	    Expr node = stack.pop();
+	    result.add(node);
+	    int n = result.size();
+	    children(node, result);
+	    // move the children just added onto the stack, the last on top
+	    for (int i = n; i < result.size(); i++)
+		stack.push(result.get(i));
+	    result.subList(n, result.size()).clear();
+	}
+	Collections.reverse(result);
+	return result;
+    }
+
+    /**
+     * List the statements (and statement lists) of a statement in
+     * post-order, in the same way as of() lists expressions. Expressions
+     * are not listed.
+     *
+     * @param root
+     *            a statement or a list of statements
+     * @return its statements and lists, root last
+     * */
+    public static ArrayList<ASTNode> statements(ASTNode root) {
+	ArrayList<ASTNode> result = new ArrayList<ASTNode>();
+	ArrayDeque<ASTNode> stack = new ArrayDeque<ASTNode>();
+	stack.push(root);
+	while (!stack.isEmpty()) {
+	    ASTNode node = stack.pop();
+	    result.add(node);
+	    if (node instanceof StmtList) {
+		for (Iterator<ASTNode> it = ((StmtList) node).getIterator(); it
+			.hasNext();)
+		    stack.push(it.next());
+	    } else if (node instanceof BlockStmt) {
+		stack.push(((BlockStmt) node).getStmtList());
+	    } else if (node instanceof IfStmt) {
+		stack.push(((IfStmt) node).getThenStmt());
+		if (((IfStmt) node).getElseStmt() != null)
+		    stack.push(((IfStmt) node).getElseStmt());
+	    } else if (node instanceof WhileStmt) {
+		stack.push(((WhileStmt) node).getBodyStmt());
+	    } else if (node instanceof ForStmt) {
+		stack.push(((ForStmt) node).getBodyStmt());
+	    }
+	}
+	Collections.reverse(result);
+	return result;
+    }
+
+    /**
+     * Add the child expressions of an expression, in evaluation order
+     *
+     * @param node
+     *            the expression
+     * @param children
+     *            where to add them
+     * */
+    public static void children(Expr node, List<Expr> children) {
+	if (node instanceof BinaryExpr) {
+	    children.add(((BinaryExpr) node).getLeftExpr());
+	    children.add(((BinaryExpr) node).getRightExpr());
+	} else if (node instanceof UnaryExpr) {
+	    children.add(((UnaryExpr) node).getExpr());
+	} else if (node instanceof DispatchExpr) {
+	    DispatchExpr d = (DispatchExpr) node;
+	    children.add(d.getRefExpr());
+	    for (Iterator<ASTNode> it = d.getActualList().getIterator(); it
+		    .hasNext();)
+		children.add((Expr) it.next());
+	} else if (node instanceof VarExpr) {
+	    add(children, ((VarExpr) node).getRef());
+	} else if (node instanceof ArrayExpr) {
+	    add(children, ((ArrayExpr) node).getRef());
+	    children.add(((ArrayExpr) node).getIndex());
+	} else if (node instanceof AssignExpr) {
+	    children.add(((AssignExpr) node).getExpr());
+	} else if (node instanceof ArrayAssignExpr) {
+	    children.add(((ArrayAssignExpr) node).getIndex());
+	    children.add(((ArrayAssignExpr) node).getExpr());
+	} else if (node instanceof NewArrayExpr) {
+	    children.add(((NewArrayExpr) node).getSize());
+	} else if (node instanceof InstanceofExpr) {
+	    children.add(((InstanceofExpr) node).getExpr());
+	} else if (node instanceof CastExpr) {
+	    children.add(((CastExpr) node).getExpr());
+	}
+	// constants and new expressions have no children
+    }
+
+    /**
+     * Add an optional child
+     * */
+    private static void add(List<Expr> children, Expr child) {
+	if (child != null)
+	    children.add(child);
+    }
+}
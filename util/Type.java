@@ -0,0 +1,205 @@
+package util;
+
+/**
+ * A Bantam type: a primitive (int, boolean), void, the type of null, a
+ * class, or an array of one of those. Types are canonical (see
+ * <tt>TypeRegistry</tt>): there is exactly one Type object per type, so
+ * types are compared with == and can be used as keys of identity maps.
+ * Each type has a dense integer id, for tables indexed by type, and its
+ * JVM descriptor, so code generation never builds descriptor strings.
+ *
+ * Class types are numbered by a depth-first walk of the class hierarchy
+ * tree: a class's descendants are exactly the classes numbered between
+ * its preorder and postorder numbers, so subclass tests take constant
+ * time however deep the hierarchy is.
+ *
+ * Primitive types (and their array types), void and null do not depend
+ * on the program and are shared by every registry; they have the lowest
+ * ids.
+ * */
+public final class Type {
+    /** The types every program has */
+    public static final Type INT = new Type("int", 0, "I", null, null);
+    public static final Type BOOLEAN = new Type("boolean", 1, "Z", null,
+	    null);
+    public static final Type VOID = new Type("void", 2, "V", null, null);
+    public static final Type NULL = new Type("null", 3,
+	    "Ljava/lang/Object;", null, null);
+    public static final Type INT_ARRAY = new Type("int[]", 4, "[I", INT,
+	    null);
+    public static final Type BOOLEAN_ARRAY = new Type("boolean[]", 5, "[Z",
+	    BOOLEAN, null);
+
+    static {
+	INT.array = INT_ARRAY;
+	BOOLEAN.array = BOOLEAN_ARRAY;
+    }
+
+    /** Canonical (NamePool) name of the type, "C[]" for an array of C */
+    private final String name;
+
+    /** Dense id of the type */
+    private final int id;
+
+    /** JVM descriptor of the type */
+    private final String descriptor;
+
+    /** Element type of an array type, null otherwise */
+    private final Type element;
+
+    /** Class of a class type, null otherwise */
+    private final ClassTreeNode ctn;
+
+    /** The type of arrays of this type (null for array types, void and
+     * null) */
+    Type array;
+
+    /** Preorder and postorder numbers of a class type in the class
+     * hierarchy tree (-1 for other types and unlinked classes) */
+    int pre = -1, post = -1;
+
+    /** Member tables of a class type, once its environment is built (see
+     * ClassLayout) */
+    ClassLayout layout;
+
+    /**
+     * Type constructor (types are created by TypeRegistry)
+     *
+     * @param name
+     *            name of the type
+     * @param id
+     *            dense id of the type
+     * @param descriptor
+     *            JVM descriptor of the type
+     * @param element
+     *            element type of an array type, or null
+     * @param ctn
+     *            class of a class type, or null
+     * */
+    Type(String name, int id, String descriptor, Type element,
+	    ClassTreeNode ctn) {
+	this.name = NamePool.intern(name);
+	this.id = id;
+	this.descriptor = descriptor;
+	this.element = element;
+	this.ctn = ctn;
+    }
+
+    /**
+     * Get the name of the type
+     *
+     * @return the canonical name, as used in the AST
+     * */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Get the dense id of the type
+     *
+     * @return the id, unique among the types of a registry
+     * */
+    public int getId() {
+	return id;
+    }
+
+    /**
+     * Get the JVM descriptor of the type
+     *
+     * @return the descriptor (for example "I", "[LFoo;")
+     * */
+    public String getDescriptor() {
+	return descriptor;
+    }
+
+    /**
+     * Get the element type of an array type
+     *
+     * @return the element type, or null if this is not an array type
+     * */
+    public Type getElementType() {
+	return element;
+    }
+
+    /**
+     * Get the type of arrays of this type
+     *
+     * @return the array type, or null if there is none (arrays of arrays,
+     *         void and null are not Bantam types)
+     * */
+    public Type getArrayType() {
+	return array;
+    }
+
+    /**
+     * Get the class of a class type
+     *
+     * @return the class tree node, or null if this is not a class type
+     * */
+    public ClassTreeNode getClassTreeNode() {
+	return ctn;
+    }
+
+    /**
+     * Get the member tables of a class type
+     *
+     * @return the layout, or null if this is not a class type or the
+     *         class's environment is not built yet
+     * */
+    public ClassLayout getLayout() {
+	return layout;
+    }
+
+    /**
+     * Is this int or boolean?
+     *
+     * @return true for a primitive type
+     * */
+    public boolean isPrimitive() {
+	return this == INT || this == BOOLEAN;
+    }
+
+    /**
+     * Is this an array type?
+     *
+     * @return true for an array type
+     * */
+    public boolean isArray() {
+	return element != null;
+    }
+
+    /**
+     * Is this a class type?
+     *
+     * @return true for a class type
+     * */
+    public boolean isClass() {
+	return ctn != null;
+    }
+
+    /**
+     * Is this class type a subclass of (or the same as) another?
+     *
+     * @param t
+     *            the possible superclass
+     * @return true if this is t or a descendant of t in the class
+     *         hierarchy tree
+     * */
+    public boolean isSubclassOf(Type t) {
+	return this == t || t.pre >= 0 && t.pre <= pre && post <= t.post;
+    }
+
+    /**
+     * Can a value of this type be stored in a reference (class, array or
+     * null)?
+     *
+     * @return true for a reference type
+     * */
+    public boolean isReference() {
+	return ctn != null || element != null || this == NULL;
+    }
+
+    public String toString() {
+	return name;
+    }
+}
@@ -0,0 +1,164 @@
+package util;
+
+import java.util.*;
+
+/**
+ * The canonical types of a program: the shared primitive types, void and
+ * null, one class type per class, and one array type per primitive or
+ * class type. Every type is created when the registry is built (once the
+ * class hierarchy is complete), so the registry is read-only afterwards and
+ * may be used by several threads without locking.
+ *
+ * Types are found by name in a NameTable, keyed on the NamePool ids of the
+ * program's own type names, and an array type is found from its element
+ * type without building the name "C[]". Class types are numbered for
+ * constant-time subclass tests (see Type.isSubclassOf()).
+ * */
+public class TypeRegistry {
+    /** Types by name */
+    private NameTable<Type> byName;
+
+    /** Types indexed by type id */
+    private ArrayList<Type> types = new ArrayList<Type>();
+
+    /** The class type of Object */
+    private Type object;
+
+    /**
+     * TypeRegistry constructor
+     *
+     * @param classes
+     *            every class of the program, built-in classes included
+     * */
+    public TypeRegistry(Collection<ClassTreeNode> classes) {
+	types.add(Type.INT);
+	types.add(Type.BOOLEAN);
+	types.add(Type.VOID);
+	types.add(Type.NULL);
+	types.add(Type.INT_ARRAY);
+	types.add(Type.BOOLEAN_ARRAY);
+	int first = types.size();
+	for (ClassTreeNode ctn : classes) {
+	    String name = ctn.getName();
+	    Type t = add(name, descriptor(name), null, ctn);
+	    if (name.equals("Object"))
+		object = t;
+	}
+	for (int i = first, n = types.size(); i < n; i++) {
+	    Type t = types.get(i);
+	    t.array = add(t.getName() + "[]", "[" + t.getDescriptor(), t, null);
+	}
+
+	byName = new NameTable<Type>(types.size());
+	for (Type t : types)
+	    byName.put(t.getName(), t);
+	if (object != null)
+	    number(object);
+    }
+
+    /**
+     * Number the class types in a depth-first walk of the class hierarchy
+     * tree (without recursion, since the tree may be very deep)
+     *
+     * @param root
+     *            the type of the root class
+     * */
+    private void number(Type root) {
+	int clock = 0;
+	ArrayDeque<Type> path = new ArrayDeque<Type>();
+	ArrayDeque<Iterator<ClassTreeNode>> children = new ArrayDeque<Iterator<ClassTreeNode>>();
+	root.pre = clock++;
+	path.push(root);
+	children.push(root.getClassTreeNode().getChildrenList());
+	while (!path.isEmpty()) {
+	    Iterator<ClassTreeNode> it = children.peek();
+	    if (it.hasNext()) {
+		Type t = get(it.next().getName());
+		t.pre = clock++;
+		path.push(t);
+		children.push(t.getClassTreeNode().getChildrenList());
+	    } else {
+		path.pop().post = clock++;
+		children.pop();
+	    }
+	}
+    }
+
+    /**
+     * Collect the classes of a class hierarchy tree
+     *
+     * @param root
+     *            root of the tree
+     * @return every class in the tree, parents before children
+     * */
+    public static List<ClassTreeNode> classesOf(ClassTreeNode root) {
+	ArrayList<ClassTreeNode> classes = new ArrayList<ClassTreeNode>();
+	classes.add(root);
+	for (int i = 0; i < classes.size(); i++) {
+	    for (Iterator<ClassTreeNode> it = classes.get(i).getChildrenList(); it
+		    .hasNext();)
+		classes.add(it.next());
+	}
+	return classes;
+    }
+
+    /**
+     * Create a type
+     * */
+    private Type add(String name, String descriptor, Type element,
+	    ClassTreeNode ctn) {
+	Type t = new Type(name, types.size(), descriptor, element, ctn);
+	types.add(t);
+	return t;
+    }
+
+    /**
+     * Get the JVM descriptor of a class
+     * */
+    private static String descriptor(String className) {
+	if (className.equals("Object") || className.equals("String"))
+	    return "Ljava/lang/" + className + ";";
+	return "L" + className + ";";
+    }
+
+    /**
+     * Look up a type by name
+     *
+     * @param name
+     *            name of the type ("C[]" for an array of C); lookups are
+     *            cheapest if the name is canonical (see NamePool)
+     * @return the type, or null if there is no such type
+     * */
+    public Type get(String name) {
+	return byName.get(name);
+    }
+
+    /**
+     * Look up a type by id
+     *
+     * @param id
+     *            the type id
+     * @return the type
+     * */
+    public Type get(int id) {
+	return types.get(id);
+    }
+
+    /**
+     * Get the number of types, for sizing tables indexed by type id
+     *
+     * @return the number of types
+     * */
+    public int size() {
+	return types.size();
+    }
+
+    /**
+     * Get the class type of Object
+     *
+     * @return the type of Object
+     * */
+    public Type getObject() {
+	return object;
+    }
+}